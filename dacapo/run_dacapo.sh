@@ -10,6 +10,9 @@ if [ ! -f TypeStabilityAgent.jar ]; then
   cp ../TypeStabilityAgent.jar .
 fi
 
+# This collects profiles. To measure the agent's overhead, in each mode and against runs without it, use
+#   java -cp TypeStabilityAgent.jar type_stability.Macrobenchmark --dacapo $DACAPO_JAR --benchmarks avrora,fop
+
 declare -A benchmarks
 benchmarks=(
 #  [avrora]="avrora"
@@ -38,5 +41,6 @@ do
   head -n 1 $LOGFILE > $SORTED_LOGFILE
   tail -n +2 $LOGFILE | sort >> $SORTED_LOGFILE
   rm $LOGFILE
+  mv $LOGFILE.methods $SORTED_LOGFILE.methods
 done
 
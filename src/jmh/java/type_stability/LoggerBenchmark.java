@@ -0,0 +1,63 @@
+package type_stability;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Throughput of each logger, called directly as the probes would, with one thread, a few threads and one thread per
+// core. The raw logger serializes every event on a lock; the others shouldn't degrade as threads are added.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoggerBenchmark {
+    private static final int NUM_METHODS = 16;
+
+    // Agent arguments besides -p and -l; "raw" stands for none
+    @Param({"raw", "--aggregate", "--binary", "--aggregate --async", "--binary --async"})
+    String logger;
+
+    private int[] methodIds;
+
+    @State(Scope.Thread)
+    public static class Events {
+        int i;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String args = logger.equals("raw") ? "" : logger + " ";
+        Config conf = Config.parse("-p type_stability/Synthetic " + args + "-l " + SyntheticClasses.nullLogFile());
+        NullnessLogger.initialize(conf);
+        methodIds = new int[NUM_METHODS];
+        for (int i = 0; i < NUM_METHODS; i++) {
+            methodIds[i] = MethodRegistry.register("type_stability/Synthetic", "m" + i, "(Ljava/lang/Object;)V", 4, 2);
+        }
+    }
+
+    // A small, repeating set of outcomes over a few methods, as a warmed-up program would log
+    private void log(Events events) {
+        int i = events.i++;
+        NullnessLogger.logReturn((i & 1) == 0 ? null : this, methodIds[i & (NUM_METHODS - 1)], i & 15, (i >> 4) & 3);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void oneThread(Events events) {
+        log(events);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void fourThreads(Events events) {
+        log(events);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void allThreads(Events events) {
+        log(events);
+    }
+}
@@ -0,0 +1,54 @@
+package type_stability;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The per-call cost of the probes: an instrumented method against the same method uninstrumented, by the number of
+// fields and parameters the probes read, under a few logger configurations.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProbeBenchmark {
+    @Param({"0", "4", "16"})
+    int numFields;
+
+    @Param({"1", "2", "4", "8"})
+    int numParameters;
+
+    // Agent arguments besides -p and -l. work() reads none of its class's fields, so with --read-fields its probe doesn't
+    // either.
+    @Param({"--aggregate", "--aggregate --async", "--aggregate --sample-every 16", "--aggregate --read-fields"})
+    String mode;
+
+    private Target plain;
+    private Target instrumented;
+    // Half the arguments are null, so the bitmaps aren't all ones
+    private final Object a = "a", c = "c", e = "e", g = "g";
+    private final Object b = null, d = null, f = null, h = null;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // One trial per fork, so the logger is only initialized once per JVM
+        Config conf = Config.parse("-p type_stability/Synthetic " + mode + " -l " + SyntheticClasses.nullLogFile());
+        NullnessSampler.configure(conf.sampleEvery, conf.sampleRandom, conf.adaptiveThreshold);
+        NullnessLogger.initialize(conf);
+        plain = SyntheticClasses.probeTarget("type_stability.SyntheticPlain", numFields, numParameters, null);
+        instrumented = SyntheticClasses.probeTarget("type_stability.SyntheticInstrumented", numFields, numParameters,
+                new MethodStabilityTransformer<>(conf.loggerClass, conf.isSampled(), conf.fieldSelection(),
+                        conf.methodFilter));
+    }
+
+    @Benchmark
+    public Object uninstrumented() {
+        return plain.call(a, b, c, d, e, f, g, h);
+    }
+
+    @Benchmark
+    public Object instrumented() {
+        return instrumented.call(a, b, c, d, e, f, g, h);
+    }
+}
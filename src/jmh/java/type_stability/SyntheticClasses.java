@@ -0,0 +1,128 @@
+package type_stability;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+// Generates classes for the benchmarks to instrument
+class SyntheticClasses {
+    private static final String OBJECT = Type.getInternalName(Object.class);
+    private static final String OBJECT_DESC = Type.getDescriptor(Object.class);
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(SyntheticClasses.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    // A Target with numFields non-null Object fields, whose call() passes its first numParameters arguments to
+    //   Object work(Object p0, ..., Object p(numParameters-1)) { return p0; }
+    // If transformer isn't null, it instruments work().
+    static Target probeTarget(String name, int numFields, int numParameters,
+                              MethodStabilityTransformer<?> transformer) throws ReflectiveOperationException {
+        String internalName = name.replace('.', '/');
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC, internalName, null, OBJECT,
+                new String[]{Type.getInternalName(Target.class)});
+        for (int i = 0; i < numFields; i++) {
+            cw.visitField(Opcodes.ACC_PRIVATE, "f" + i, OBJECT_DESC, null, null).visitEnd();
+        }
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+        for (int i = 0; i < numFields; i++) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitLdcInsn("f" + i);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, internalName, "f" + i, OBJECT_DESC);
+        }
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        StringBuilder workDesc = new StringBuilder("(");
+        for (int i = 0; i < numParameters; i++) {
+            workDesc.append(OBJECT_DESC);
+        }
+        workDesc.append(")").append(OBJECT_DESC);
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "call", "(" + OBJECT_DESC.repeat(8) + ")" + OBJECT_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        for (int i = 0; i < numParameters; i++) {
+            mv.visitVarInsn(Opcodes.ALOAD, i + 1);
+        }
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, internalName, "work", workDesc.toString(), false);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "work", workDesc.toString(), null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        byte[] bytes = cw.toByteArray();
+        if (transformer != null) {
+            ClassReader cr = new ClassReader(bytes);
+            ClassNode cn = new ClassNode();
+            cr.accept(cn, ClassReader.EXPAND_FRAMES);
+            for (MethodNode mn : cn.methods) {
+                if (mn.name.equals("work")) {
+                    transformer.transformMethod(cn, mn);
+                }
+            }
+            ClassWriter out = new HierarchyClassWriter(cr, ClassWriter.COMPUTE_FRAMES, null);
+            cn.accept(out);
+            bytes = out.toByteArray();
+        }
+        return (Target) new Loader().define(name, bytes).getConstructor().newInstance();
+    }
+
+    // A class with numMethods methods like
+    //   String m<i>(Object a, String b) { if (a == null) { return null; } return b; }
+    // and a handful of reference fields, for TransformBenchmark.
+    static byte[] wideClass(String name, int numMethods) {
+        String internalName = name.replace('.', '/');
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC, internalName, null, OBJECT, null);
+        for (int i = 0; i < 8; i++) {
+            cw.visitField(Opcodes.ACC_PRIVATE, "f" + i, OBJECT_DESC, null, null).visitEnd();
+        }
+        String desc = "(" + OBJECT_DESC + Type.getDescriptor(String.class) + ")" + Type.getDescriptor(String.class);
+        for (int i = 0; i < numMethods; i++) {
+            MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "m" + i, desc, null, null);
+            mv.visitCode();
+            Label nonNull = new Label();
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitJumpInsn(Opcodes.IFNONNULL, nonNull);
+            mv.visitInsn(Opcodes.ACONST_NULL);
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitLabel(nonNull);
+            mv.visitVarInsn(Opcodes.ALOAD, 2);
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    // A log file which doesn't grow without bound while benchmarking
+    static String nullLogFile() {
+        return new java.io.File("/dev/null").exists() ? "/dev/null" : "NUL";
+    }
+}
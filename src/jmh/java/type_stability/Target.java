@@ -0,0 +1,7 @@
+package type_stability;
+
+// Implemented by the classes SyntheticClasses generates for ProbeBenchmark. Loaded by the benchmark's class loader, so
+// that generated classes can be called without reflection.
+public interface Target {
+    Object call(Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7);
+}
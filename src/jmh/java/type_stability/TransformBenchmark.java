@@ -0,0 +1,51 @@
+package type_stability;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// What the transformer costs per class at load time, by the number of methods in the class. parse() is the baseline
+// every class pays for; transform() additionally instruments every method and writes the class with computed frames.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TransformBenchmark {
+    @Param({"10", "100", "1000"})
+    int numMethods;
+
+    private byte[] classfile;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // As the agent does; the transformer otherwise logs every method it instruments
+        Config.setLogLevel(java.util.logging.Level.WARNING);
+        classfile = SyntheticClasses.wideClass("type_stability.SyntheticWide", numMethods);
+        HierarchyClassWriter.index(classfile);
+    }
+
+    @Benchmark
+    public ClassNode parse() {
+        ClassReader cr = new ClassReader(classfile);
+        ClassNode cn = new ClassNode();
+        cr.accept(cn, ClassReader.EXPAND_FRAMES);
+        return cn;
+    }
+
+    @Benchmark
+    public byte[] transform() {
+        ClassReader cr = new ClassReader(classfile);
+        ClassNode cn = new ClassNode();
+        cr.accept(cn, ClassReader.EXPAND_FRAMES);
+        // Methods are registered on the first invocation and looked up afterwards, as when a class is retransformed
+        new MethodStabilityTransformer<>(NullnessLogger.class).transformClass(cn);
+        ClassWriter cw = new HierarchyClassWriter(cr, ClassWriter.COMPUTE_FRAMES, null);
+        cn.accept(cw);
+        return cw.toByteArray();
+    }
+}
@@ -0,0 +1,173 @@
+package type_stability;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+
+// An open-addressing hash table from (meta, fields, parameters) keys to long counts and weights. It is written by a
+// single owner thread without locking; other threads may read it (e.g. to merge it) at any time and see slightly stale
+// counts. A table's bitmaps are either one word each, or for methods with 65 to 128 reftype fields or parameters, two
+// words each; the latter use the TwoWords methods.
+class AggregateTable {
+    interface Visitor {
+        void visit(long meta, long fields, long parameters, long count, long weight);
+    }
+
+    interface TwoWordVisitor {
+        void visit(long meta, long fields0, long fields1, long parameters0, long parameters1, long count, long weight);
+    }
+
+    // Each slot is STRIDE consecutive longs: meta, fields, parameters, count, weight, or in two-word tables
+    // TWO_WORD_STRIDE: meta, fields0, fields1, parameters0, parameters1, count, weight. An empty slot has meta == 0, so
+    // callers must never use 0 as a meta value.
+    private static final int STRIDE = 5;
+    private static final int TWO_WORD_STRIDE = 7;
+    private static final int INITIAL_CAPACITY = 64; // slots; must be a power of two
+    // A slot's meta is published with release semantics after its key, so that readers never see half a key
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final WeakReference<Thread> owner;
+    private final int stride;
+    // Keys and counts share one array so that a reader always sees a consistent table, even across a resize.
+    private volatile long[] slots;
+    private int size;
+
+    AggregateTable(Thread owner) {
+        this(owner, false);
+    }
+
+    AggregateTable(Thread owner, boolean twoWords) {
+        this.owner = new WeakReference<>(owner);
+        this.stride = twoWords ? TWO_WORD_STRIDE : STRIDE;
+        this.slots = new long[INITIAL_CAPACITY * stride];
+    }
+
+    boolean isOwnerAlive() {
+        Thread t = owner.get();
+        return t != null && t.isAlive();
+    }
+
+    private static int hash(long meta, long fields, long parameters) {
+        long h = meta * 0x9E3779B97F4A7C15L;
+        h = (h ^ fields) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ parameters) * 0x165667B19E3779F9L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int hash(long meta, long fields0, long fields1, long parameters0, long parameters1) {
+        return hash(meta, fields0 * 0x9E3779B97F4A7C15L ^ fields1, parameters0 * 0x9E3779B97F4A7C15L ^ parameters1);
+    }
+
+    // The hash of the key in the slot at base of s
+    private int hash(long[] s, int base) {
+        return stride == STRIDE
+                ? hash(s[base], s[base + 1], s[base + 2])
+                : hash(s[base], s[base + 1], s[base + 2], s[base + 3], s[base + 4]);
+    }
+
+    void increment(long meta, long fields, long parameters, long count, long weight) {
+        long[] s = slots;
+        int mask = s.length / STRIDE - 1;
+        int i = hash(meta, fields, parameters) & mask;
+        while (true) {
+            int base = i * STRIDE;
+            long m = s[base];
+            if (m == 0) {
+                s[base + 1] = fields;
+                s[base + 2] = parameters;
+                s[base + 3] = count;
+                s[base + 4] = weight;
+                SLOT.setRelease(s, base, meta);
+                if (++size * 2 > mask + 1) {
+                    grow();
+                }
+                return;
+            }
+            if (m == meta && s[base + 1] == fields && s[base + 2] == parameters) {
+                s[base + 3] += count;
+                s[base + 4] += weight;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // Only for two-word tables
+    void incrementTwoWords(long meta, long fields0, long fields1, long parameters0, long parameters1, long count,
+                           long weight) {
+        long[] s = slots;
+        int mask = s.length / TWO_WORD_STRIDE - 1;
+        int i = hash(meta, fields0, fields1, parameters0, parameters1) & mask;
+        while (true) {
+            int base = i * TWO_WORD_STRIDE;
+            long m = s[base];
+            if (m == 0) {
+                s[base + 1] = fields0;
+                s[base + 2] = fields1;
+                s[base + 3] = parameters0;
+                s[base + 4] = parameters1;
+                s[base + 5] = count;
+                s[base + 6] = weight;
+                SLOT.setRelease(s, base, meta);
+                if (++size * 2 > mask + 1) {
+                    grow();
+                }
+                return;
+            }
+            if (m == meta && s[base + 1] == fields0 && s[base + 2] == fields1 && s[base + 3] == parameters0
+                    && s[base + 4] == parameters1) {
+                s[base + 5] += count;
+                s[base + 6] += weight;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        long[] old = slots;
+        long[] s = new long[old.length * 2];
+        int mask = s.length / stride - 1;
+        for (int base = 0; base < old.length; base += stride) {
+            if (old[base] == 0) {
+                continue;
+            }
+            int i = hash(old, base) & mask;
+            while (s[i * stride] != 0) {
+                i = (i + 1) & mask;
+            }
+            System.arraycopy(old, base, s, i * stride, stride);
+        }
+        slots = s;
+    }
+
+    void forEach(Visitor visitor) {
+        long[] s = slots;
+        for (int base = 0; base < s.length; base += STRIDE) {
+            long meta = (long) SLOT.getAcquire(s, base);
+            if (meta != 0) {
+                visitor.visit(meta, s[base + 1], s[base + 2], s[base + 3], s[base + 4]);
+            }
+        }
+    }
+
+    // Only for two-word tables
+    void forEachTwoWords(TwoWordVisitor visitor) {
+        long[] s = slots;
+        for (int base = 0; base < s.length; base += TWO_WORD_STRIDE) {
+            long meta = (long) SLOT.getAcquire(s, base);
+            if (meta != 0) {
+                visitor.visit(meta, s[base + 1], s[base + 2], s[base + 3], s[base + 4], s[base + 5], s[base + 6]);
+            }
+        }
+    }
+
+    // Only the owner of this table may call this. Both tables must have the same number of words.
+    void addAll(AggregateTable other) {
+        if (stride == STRIDE) {
+            other.forEach(this::increment);
+        } else {
+            other.forEachTwoWords(this::incrementTwoWords);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package type_stability;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Takes logging off application threads: probes push primitive records into a bounded per-thread ring buffer, and a
+// single background thread drains the rings in batches into the underlying logger.
+public class AsyncNullnessLogger extends NullnessLogger {
+    // What a probe does when its thread's ring is full
+    enum OverflowPolicy {
+        BLOCK, // wait for the drainer to make room
+        DROP, // discard the event and count it
+        SPILL // log the event synchronously through the underlying logger
+    }
+
+    // A single-producer single-consumer ring of (methodId, weight and result, fields, parameters) records. Only the owner
+    // thread offers, and only the drainer polls.
+    static class Ring {
+        private static final VarHandle HEAD;
+        private static final VarHandle TAIL;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                HEAD = lookup.findVarHandle(Ring.class, "head", long.class);
+                TAIL = lookup.findVarHandle(Ring.class, "tail", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private static final int RECORD_SIZE = 3;
+
+        final WeakReference<Thread> owner;
+        private final long[] records;
+        private final int mask;
+        private long head; // next record to poll; written by the drainer
+        private long tail; // next record to offer; written by the owner
+        // Set by finish() once it has drained the ring for the last time. Guarded by this.
+        private boolean closed = false;
+
+        Ring(Thread owner, int capacity) {
+            this.owner = new WeakReference<>(owner);
+            this.records = new long[capacity * RECORD_SIZE];
+            this.mask = capacity - 1;
+        }
+
+        boolean offer(int methodId, long fields, long parameters, char result, int weight) {
+            long t = tail;
+            if (t - (long) HEAD.getAcquire(this) > mask) {
+                return false;
+            }
+            int base = (int) (t & mask) * RECORD_SIZE;
+            // weight is at most NullnessSampler.MAX_WEIGHT, which fits in 24 bits
+            records[base] = (long) methodId << 32 | (long) weight << 8 | (result & 0xff);
+            records[base + 1] = fields;
+            records[base + 2] = parameters;
+            TAIL.setRelease(this, t + 1);
+            return true;
+        }
+
+        // Returns the number of records moved into the logger, at most max
+        int drainTo(NullnessLogger logger, int max) {
+            long h = head;
+            long available = Math.min((long) TAIL.getAcquire(this) - h, max);
+            for (long i = 0; i < available; i++) {
+                int base = (int) ((h + i) & mask) * RECORD_SIZE;
+                long key = records[base];
+                logger.log((int) (key >>> 32), records[base + 1], records[base + 2], (char) (key & 0xff),
+                        (int) (key >>> 8) & NullnessSampler.MAX_WEIGHT);
+            }
+            HEAD.setRelease(this, h + available);
+            return (int) available;
+        }
+
+        boolean isEmpty() {
+            return (long) TAIL.getAcquire(this) == head;
+        }
+
+        // Takes the ring's last records, once the drainer has stopped; the lock keeps a single consumer
+        synchronized void close(NullnessLogger logger) {
+            drainTo(logger, Integer.MAX_VALUE);
+            closed = true;
+        }
+
+        // Called by the owner when it may have offered after close(), which would have missed the record
+        synchronized void drainIfClosed(NullnessLogger logger) {
+            if (closed) {
+                drainTo(logger, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    private static final int BATCH_SIZE = 4096;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final NullnessLogger delegate;
+    private final int ringCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final CopyOnWriteArrayList<Ring> rings = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Ring> ring = ThreadLocal.withInitial(this::register);
+    private final LongAdder dropped = new LongAdder();
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    AsyncNullnessLogger(NullnessLogger delegate, int ringCapacity, OverflowPolicy overflowPolicy) {
+        super(delegate.outputFile, null);
+        if (Integer.bitCount(ringCapacity) != 1) {
+            throw new IllegalArgumentException("Ring buffer size must be a power of two.");
+        }
+        this.delegate = delegate;
+        this.ringCapacity = ringCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.drainer = new Thread(this::drainLoop, "type-stability-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    // Synchronized with finish(), so that a ring is either closed by it or created closed
+    private synchronized Ring register() {
+        Ring r = new Ring(Thread.currentThread(), ringCapacity);
+        if (running) {
+            rings.add(r);
+        } else {
+            r.close(delegate);
+        }
+        return r;
+    }
+
+    @Override
+    protected void log(int methodId, long fields, long parameters, char result, int weight) {
+        if (!running) {
+            // finish() has taken or is taking the last records out of the rings, and would miss this one
+            delegate.log(methodId, fields, parameters, result, weight);
+            return;
+        }
+        Ring r = ring.get();
+        if (r.offer(methodId, fields, parameters, result, weight)) {
+            if (!running) {
+                // finish() started meanwhile, and may have closed the ring before the record was in it
+                r.drainIfClosed(delegate);
+            }
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                do {
+                    if (!running) {
+                        // The drainer is gone and would never make room, so nothing is lost by logging it here
+                        delegate.log(methodId, fields, parameters, result, weight);
+                        break;
+                    }
+                    LockSupport.unpark(drainer);
+                    Thread.onSpinWait();
+                } while (!r.offer(methodId, fields, parameters, result, weight));
+                break;
+            case DROP:
+                dropped.increment();
+                break;
+            case SPILL:
+                delegate.log(methodId, fields, parameters, result, weight);
+                break;
+        }
+    }
+
+    // Records have room for single-word bitmaps only. Methods with more than 64 reftype fields or parameters are rare,
+    // so their events are logged synchronously, as if spilled.
+    @Override
+    protected void log(int methodId, long fields0, long fields1, long parameters0, long parameters1, char result,
+                       int weight) {
+        delegate.log(methodId, fields0, fields1, parameters0, parameters1, result, weight);
+    }
+
+    @Override
+    protected void log(int methodId, long[] fields, long[] parameters, char result, int weight) {
+        delegate.log(methodId, fields, parameters, result, weight);
+    }
+
+    // Drains at most batchSize records from every ring; returns the number of records drained
+    private int drainAll(int batchSize) {
+        int drained = 0;
+        for (Ring r : rings) {
+            drained += r.drainTo(delegate, batchSize);
+        }
+        return drained;
+    }
+
+    private void drainLoop() {
+        while (running) {
+            if (drainAll(BATCH_SIZE) == 0) {
+                // Forget the rings of dead threads once they're empty; the owner can't offer to them anymore.
+                for (Ring r : rings) {
+                    Thread owner = r.owner.get();
+                    if ((owner == null || !owner.isAlive()) && r.isEmpty()) {
+                        rings.remove(r);
+                    }
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    @Override
+    protected long droppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    protected synchronized void finish() {
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Application threads may still be logging while shutdown hooks run. From now on log() hands their events to
+        // the delegate; take whatever they published before. A probe which saw running just before it turned false
+        // checks again after offering, and drains its ring itself if it was already closed.
+        for (Ring r : rings) {
+            r.close(delegate);
+        }
+        long numDropped = dropped.sum();
+        if (numDropped > 0) {
+            report("Dropped " + numDropped + " events because their ring buffer was full.");
+        }
+        delegate.finish();
+    }
+}
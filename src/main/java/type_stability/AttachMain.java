@@ -0,0 +1,25 @@
+package type_stability;
+
+import com.sun.tools.attach.VirtualMachine;
+
+import java.io.File;
+
+// Loads this agent into a running JVM, which then profiles for a bounded window (see ProfilingWindow).
+// Usage: java -cp TypeStabilityAgent.jar type_stability.AttachMain pid "agentArgs"
+// e.g. AttachMain 1234 "-p com/example --aggregate -l /tmp/profile.csv --duration 300"
+public class AttachMain {
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: AttachMain pid \"agentArgs\"");
+            System.exit(1);
+        }
+        String agentJar = new File(AttachMain.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .getAbsolutePath();
+        VirtualMachine vm = VirtualMachine.attach(args[0]);
+        try {
+            vm.loadAgent(agentJar, args[1]);
+        } finally {
+            vm.detach();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package type_stability;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Streams a log written by BinaryNullnessLogger back into the CSV format written by NullnessLogger.
+// Usage: java -cp TypeStabilityAgent.jar type_stability.BinaryLogDecoder binaryLog [csvFile]
+public class BinaryLogDecoder {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final long tableOffset;
+    private final boolean sampled;
+    private String[] classNames;
+    private String[] methodNames;
+    private int[] numFields;
+    private int[] numParameters;
+
+    BinaryLogDecoder(String inputFile) throws IOException {
+        channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+
+        ByteBuffer header = readFully(0, BinaryNullnessLogger.HEADER_SIZE);
+        if (header.getInt() != BinaryNullnessLogger.MAGIC) {
+            throw new IOException(inputFile + " is not a binary nullness log.");
+        }
+        int version = header.getInt();
+        if (version != BinaryNullnessLogger.VERSION) {
+            throw new IOException("Unsupported binary nullness log version " + version + ".");
+        }
+        sampled = (header.getInt() & BinaryNullnessLogger.FLAG_SAMPLED) != 0;
+
+        long footerOffset = channel.size() - BinaryNullnessLogger.FOOTER_SIZE;
+        tableOffset = readFully(footerOffset, BinaryNullnessLogger.FOOTER_SIZE).getLong();
+        readMethodTable(readFully(tableOffset, (int) (footerOffset - tableOffset)));
+    }
+
+    private ByteBuffer readFully(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated binary nullness log.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void readMethodTable(ByteBuffer table) {
+        int n = table.getInt();
+        classNames = new String[n];
+        methodNames = new String[n];
+        numFields = new int[n];
+        numParameters = new int[n];
+        for (int id = 0; id < n; id++) {
+            classNames[id] = getString(table);
+            methodNames[id] = getString(table);
+            getString(table); // descriptor; not part of the CSV
+            numFields[id] = table.getInt();
+            numParameters[id] = table.getInt();
+        }
+    }
+
+    void decode(Writer writer) throws IOException {
+        // Records of the widest method must fit in the buffer
+        int maxRecordSize = BinaryNullnessLogger.MAX_RECORD_SIZE;
+        for (int id = 0; id < numFields.length; id++) {
+            maxRecordSize = Math.max(maxRecordSize, BinaryNullnessLogger.MAX_RECORD_SIZE + 10 *
+                    (MethodStabilityTransformer.numWords(numFields[id]) +
+                            MethodStabilityTransformer.numWords(numParameters[id])));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, maxRecordSize));
+        long position = BinaryNullnessLogger.HEADER_SIZE;
+        buffer.flip();
+        while (true) {
+            // Refill whenever the next record might straddle the end of the buffer
+            if (buffer.remaining() < maxRecordSize && position < tableOffset) {
+                buffer.compact();
+                buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + tableOffset - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Truncated binary nullness log.");
+                }
+                position += read;
+                buffer.flip();
+            }
+            if (!buffer.hasRemaining()) {
+                break;
+            }
+            long key = BinaryNullnessLogger.getVarLong(buffer);
+            int id = (int) (key >>> 2);
+            char result = (char) (NullnessLogger.NULL + (key & 0x3));
+            writer.append(classNames[id]);
+            writer.append(',');
+            writer.append(methodNames[id]);
+            writer.append(',');
+            decodeBitMap(buffer, writer, numFields[id]);
+            writer.append(',');
+            decodeBitMap(buffer, writer, numParameters[id]);
+            writer.append(',');
+            writer.append(result);
+            if (sampled) {
+                writer.append(',');
+                writer.append(Long.toString(BinaryNullnessLogger.getVarLong(buffer)));
+            }
+            writer.append('\n');
+        }
+        writer.flush();
+    }
+
+    private static void decodeBitMap(ByteBuffer buffer, Writer writer, int width) throws IOException {
+        int numWords = MethodStabilityTransformer.numWords(width);
+        for (int word = 0; word < numWords; word++) {
+            NullnessLogger.writeBitMap(writer, Math.min(64, width - word * 64), BinaryNullnessLogger.getVarLong(buffer));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: BinaryLogDecoder binaryLog [csvFile]");
+            System.exit(1);
+        }
+        BinaryLogDecoder decoder = new BinaryLogDecoder(args[0]);
+        try (Writer writer = args.length == 2
+                ? new BufferedWriter(new FileWriter(args[1]))
+                : new BufferedWriter(new OutputStreamWriter(System.out))) {
+            decoder.decode(writer);
+        } finally {
+            decoder.channel.close();
+        }
+    }
+}
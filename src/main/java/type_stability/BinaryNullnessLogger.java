@@ -0,0 +1,188 @@
+package type_stability;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+// Writes every event as a compact varint-encoded binary record, in large chunks through a FileChannel. Use BinaryLogDecoder to
+// turn the log back into the CSV written by NullnessLogger.
+//
+// Layout (big-endian):
+//   header:  int MAGIC, int VERSION, int flags
+//   records: varint (methodId << 2 | result - '0'), varint fields, varint parameters, and if FLAG_SAMPLED is set,
+//            varint weight   (at most MAX_RECORD_SIZE bytes)
+//            Methods with more than 64 reftype fields (or parameters) have one varint per 64-value word of the bitmap
+//            instead; see MethodStabilityTransformer.numWords.
+//   table:   int numMethods, then per method: string className, string methodName, string descriptor,
+//            int numFields, int numParameters   (a string is an int length followed by that many UTF-8 bytes)
+//   footer:  long offset of the table
+// A varint is an unsigned LEB128 number: 7 bits per byte, least significant group first, high bit set on all but the
+// last byte. Bitmaps of methods with few reftype fields and parameters thus take a single byte.
+public class BinaryNullnessLogger extends NullnessLogger {
+    private static final Logger LOGGER = Logger.getLogger(BinaryNullnessLogger.class.getName());
+
+    static final int MAGIC = 0x4e554c42; // "NULB"
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 12;
+    static final int MAX_RECORD_SIZE = 5 + 10 + 10 + 5;
+    static final int FLAG_SAMPLED = 1;
+    static final int FOOTER_SIZE = 8;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final boolean sampled = NullnessSampler.isEnabled();
+
+    protected BinaryNullnessLogger(String outputFile) throws IOException {
+        super(outputFile, null);
+        if (outputFile == null) {
+            throw new IllegalArgumentException("The binary logger requires a log file.");
+        }
+        channel = FileChannel.open(Paths.get(outputFile),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(sampled ? FLAG_SAMPLED : 0);
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flushBuffer();
+        }
+    }
+
+    @Override
+    protected synchronized void log(int methodId, long fields, long parameters, char result, int weight) {
+        if (finished) {
+            return;
+        }
+        try {
+            ensureRemaining(MAX_RECORD_SIZE);
+            putVarLong(buffer, (long) methodId << 2 | (result - NULL));
+            putVarLong(buffer, fields);
+            putVarLong(buffer, parameters);
+            if (sampled) {
+                putVarLong(buffer, weight);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected synchronized void log(int methodId, long fields0, long fields1, long parameters0, long parameters1,
+                                    char result, int weight) {
+        if (finished) {
+            return;
+        }
+        MethodRegistry.MethodInfo method = MethodRegistry.get(methodId);
+        try {
+            ensureRemaining(MAX_RECORD_SIZE + 20);
+            putVarLong(buffer, (long) methodId << 2 | (result - NULL));
+            putWords(method.numFields, fields0, fields1);
+            putWords(method.numParameters, parameters0, parameters1);
+            if (sampled) {
+                putVarLong(buffer, weight);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // As many of the two words of a bitmap of width values as MethodStabilityTransformer.numWords says
+    private void putWords(int width, long word0, long word1) {
+        putVarLong(buffer, word0);
+        if (MethodStabilityTransformer.numWords(width) == 2) {
+            putVarLong(buffer, word1);
+        }
+    }
+
+    @Override
+    protected synchronized void log(int methodId, long[] fields, long[] parameters, char result, int weight) {
+        if (finished) {
+            return;
+        }
+        try {
+            ensureRemaining(MAX_RECORD_SIZE + 10 * (fields.length + parameters.length));
+            putVarLong(buffer, (long) methodId << 2 | (result - NULL));
+            for (long word : fields) {
+                putVarLong(buffer, word);
+            }
+            for (long word : parameters) {
+                putVarLong(buffer, word);
+            }
+            if (sampled) {
+                putVarLong(buffer, weight);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7fL) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private void putString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ensureRemaining(4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    @Override
+    protected synchronized void finish() {
+        finished = true;
+        try {
+            flushBuffer();
+            long tableOffset = channel.position();
+            int n = MethodRegistry.size();
+            buffer.putInt(n);
+            for (int id = 0; id < n; id++) {
+                MethodRegistry.MethodInfo method = MethodRegistry.get(id);
+                putString(method.className);
+                putString(method.methodName);
+                putString(method.descriptor);
+                ensureRemaining(8 + FOOTER_SIZE);
+                buffer.putInt(method.numFields);
+                buffer.putInt(method.numParameters);
+            }
+            buffer.putLong(tableOffset);
+            flushBuffer();
+            channel.close();
+            writeFieldTable();
+        } catch (IOException e) {
+            LOGGER.severe("An exception occurred while closing the BinaryNullnessLogger file " + outputFile);
+            LOGGER.severe(e.getMessage());
+        }
+    }
+}
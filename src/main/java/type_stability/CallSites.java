@@ -0,0 +1,114 @@
+package type_stability;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+// With --call-sites, instrumented classes also record which call site each call of an instrumented method comes from,
+// so that profiles can be split by caller. Before every invocation which might reach an instrumented method, the
+// caller stores the call site's ID in a thread-local slot, and clears it once the invocation returns or throws; the
+// callee's prologue takes it (leaving 0 behind) and its epilogue puts it back just before logging, where
+// NullnessAggregateLogger takes it again. A callee reached through uninstrumented code (e.g. a JDK method taking a
+// callback) is attributed to the instrumented call site that invocation went through, if the uninstrumented code
+// didn't first call another instrumented method, and otherwise to 0.
+//
+// Call sites are identified by their method and the index of the invoke instruction in its original code (the tree
+// API has no bytecode offsets), with the source line for readability.
+public class CallSites {
+    private static final Logger LOGGER = Logger.getLogger(CallSites.class.getName());
+
+    // IDs must fit the bits NullnessAggregateLogger's keys have for them; 0 means unknown
+    static final int MAX_ID = (1 << 23) - 1;
+
+    private static class CallSite {
+        final String className;
+        final String methodName;
+        final String descriptor;
+        final int instruction;
+        final int line; // -1 if unknown
+
+        CallSite(String className, String methodName, String descriptor, int instruction, int line) {
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.instruction = instruction;
+            this.line = line;
+        }
+    }
+
+    private static boolean enabled = false;
+
+    private static final ThreadLocal<int[]> slot = ThreadLocal.withInitial(() -> new int[1]);
+
+    // Guarded by CallSites.class. Index 0 is the unknown call site.
+    private static final HashMap<String, Integer> byKey = new HashMap<>();
+    private static final List<CallSite> byId = new ArrayList<>(List.of(new CallSite("", "", "", -1, -1)));
+    private static boolean full = false;
+
+    static void configure(boolean enabled) {
+        CallSites.enabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Called by callers just before an invocation
+    public static void enter(int callSite) {
+        slot.get()[0] = callSite;
+    }
+
+    // The current call site, which is cleared so that it can't be attributed to a later, unrelated call
+    public static int take() {
+        int[] s = slot.get();
+        int callSite = s[0];
+        s[0] = 0;
+        return callSite;
+    }
+
+    // Registering the same call site twice (e.g. when its class is retransformed) returns the same ID
+    static synchronized int register(String className, String methodName, String descriptor, int instruction,
+                                     int line) {
+        String key = className + "::" + methodName + descriptor + "@" + instruction;
+        Integer id = byKey.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (byId.size() > MAX_ID) {
+            if (!full) {
+                LOGGER.warning("More than " + MAX_ID + " call sites; attributing the rest to call site 0.");
+                full = true;
+            }
+            return 0;
+        }
+        id = byId.size();
+        byId.add(new CallSite(className, methodName, descriptor, instruction, line));
+        byKey.put(key, id);
+        return id;
+    }
+
+    // class::method+descriptor@instruction, which identifies a call site across JVMs; see ProfileFormat
+    static synchronized String describe(int id) {
+        if (id == 0) {
+            return ProfileFormat.UNKNOWN_CALLER;
+        }
+        CallSite site = byId.get(id);
+        return site.className + "::" + site.methodName + site.descriptor + "@" + site.instruction;
+    }
+
+    static synchronized void writeTable(Writer writer) throws IOException {
+        writer.append("callsite,class,method,descriptor,instruction,line\n");
+        for (int id = 0; id < byId.size(); id++) {
+            CallSite site = byId.get(id);
+            writer.append(Integer.toString(id)).append(',')
+                    .append(site.className).append(',')
+                    .append(site.methodName).append(',')
+                    .append(site.descriptor).append(',')
+                    .append(Integer.toString(site.instruction)).append(',')
+                    .append(Integer.toString(site.line)).append('\n');
+        }
+    }
+}
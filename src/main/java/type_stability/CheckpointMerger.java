@@ -0,0 +1,88 @@
+package type_stability;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Adds up the deltas in a checkpoint file written by NullnessAggregateLogger into the totals it would have written at
+// shutdown. Checkpoints which were cut short (no "# end" line) are skipped.
+// Usage: java -cp TypeStabilityAgent.jar type_stability.CheckpointMerger checkpointFile [csvFile]
+public class CheckpointMerger {
+    private final String header;
+    // Keyed by "[callsite,]method,fields,params,result"; values are count and, for sampled profiles, estimate
+    private final Map<String, long[]> totals = new LinkedHashMap<>();
+    private int numCheckpoints = 0;
+
+    CheckpointMerger(List<String> lines) throws IOException {
+        if (lines.isEmpty()) {
+            throw new IOException("Empty checkpoint file.");
+        }
+        header = lines.get(0);
+        int numColumns = header.split(",").length;
+        // The key columns are method,fields,params,result, preceded by callsite in profiles with call sites
+        int numKeys = Arrays.asList(header.split(",")).indexOf("count");
+        Map<String, long[]> pending = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.startsWith("# checkpoint ")) {
+                pending.clear();
+            } else if (line.startsWith("# end ")) {
+                pending.forEach(this::add);
+                pending.clear();
+                numCheckpoints++;
+            } else if (!line.isEmpty()) {
+                String[] cells = line.split(",");
+                if (cells.length != numColumns) {
+                    continue; // the tail of a checkpoint cut short
+                }
+                String key = String.join(",", Arrays.asList(cells).subList(0, numKeys));
+                long[] counts = new long[numColumns - numKeys];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = Long.parseLong(cells[numKeys + i]);
+                }
+                pending.merge(key, counts, CheckpointMerger::sum);
+            }
+        }
+    }
+
+    private void add(String key, long[] counts) {
+        totals.merge(key, counts, CheckpointMerger::sum);
+    }
+
+    private static long[] sum(long[] a, long[] b) {
+        long[] result = a.clone();
+        for (int i = 0; i < result.length; i++) {
+            result[i] += b[i];
+        }
+        return result;
+    }
+
+    void write(Writer writer) throws IOException {
+        writer.append(header).append('\n');
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            writer.append(entry.getKey());
+            for (long count : entry.getValue()) {
+                writer.append(',').append(Long.toString(count));
+            }
+            writer.append('\n');
+        }
+        writer.flush();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: CheckpointMerger checkpointFile [csvFile]");
+            System.exit(1);
+        }
+        CheckpointMerger merger = new CheckpointMerger(Files.readAllLines(Paths.get(args[0])));
+        try (Writer writer = args.length == 2
+                ? new BufferedWriter(new FileWriter(args[1]))
+                : new BufferedWriter(new OutputStreamWriter(System.out))) {
+            merger.write(writer);
+        }
+        System.err.println("Merged " + merger.numCheckpoints + " checkpoints.");
+    }
+}
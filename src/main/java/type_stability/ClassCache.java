@@ -0,0 +1,91 @@
+package type_stability;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// An on-disk cache of transformed classes, so that later runs can skip parsing and transforming them. Entries are keyed
+// by a hash of the original class bytes, the parts of the agent configuration which affect the transformed bytes, the
+// agent build, and the epoch of the persistent method table their method IDs refer to.
+//
+// Layout: <directory>/methods is a PersistentMethodTable, and <directory>/classes/<key>.class are the transformed
+// classes. An empty entry means the class had nothing to instrument.
+class ClassCache {
+    // Bump whenever the layout of the cache changes
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path classesDirectory;
+    private final byte[] salt;
+
+    private ClassCache(Path classesDirectory, String salt) {
+        this.classesDirectory = classesDirectory;
+        this.salt = salt.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static ClassCache open(String directory, String configFingerprint) throws IOException {
+        Path root = Paths.get(directory);
+        Path classes = root.resolve("classes");
+        Files.createDirectories(classes);
+        PersistentMethodTable table = new PersistentMethodTable(root.resolve("methods"));
+        MethodRegistry.persist(table);
+        return new ClassCache(classes,
+                FORMAT_VERSION + "|" + agentBuild() + "|" + configFingerprint + "|" + table.epoch);
+    }
+
+    // Identifies the agent jar, so that rebuilding the agent invalidates the cache
+    private static String agentBuild() {
+        CodeSource source = ClassCache.class.getProtectionDomain().getCodeSource();
+        try {
+            File jar = new File(source.getLocation().toURI());
+            return jar.length() + "@" + jar.lastModified();
+        } catch (URISyntaxException | RuntimeException e) {
+            return "unknown";
+        }
+    }
+
+    String key(byte[] classfile) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            byte[] hash = digest.digest(classfile);
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    // Returns the transformed class, an empty array if the class is to be left alone, or null if it isn't cached
+    byte[] lookup(String key) {
+        Path path = classesDirectory.resolve(key + ".class");
+        try {
+            return Files.readAllBytes(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // result may be null if the class is to be left alone
+    void store(String key, byte[] result) throws IOException {
+        Path path = classesDirectory.resolve(key + ".class");
+        // Write to a temporary file first, so that concurrent JVMs never see a partial entry
+        Path tmp = Files.createTempFile(classesDirectory, key, ".tmp");
+        try {
+            Files.write(tmp, result != null ? result : new byte[0]);
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package type_stability;
+
+import java.util.Arrays;
+
+// Decides which classes are instrumented, from any number of included (-p) and excluded (-x) prefixes of internal
+// class names. The most specific rule wins: -p com/example -x com/example/generated -p com/example/generated/Keep
+// instruments com/example/Foo and com/example/generated/KeepMe, but not com/example/generated/Bar. Classes which match
+// no rule are left alone.
+//
+// The rules are kept in a trie, so checking a class takes one walk down its name, however many rules there are.
+class ClassFilter {
+    private static final byte NONE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    private static class Node {
+        char[] keys = new char[0]; // sorted
+        Node[] children = new Node[0];
+        byte rule = NONE; // for the prefix ending at this node
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node addChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            i = -i - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            newKeys[i] = c;
+            newChildren[i] = new Node();
+            System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+            System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[i];
+        }
+    }
+
+    private final Node root = new Node();
+    private int numIncluded = 0;
+
+    // Prefixes may use '.' or '/' as the package separator
+    void include(String prefix) {
+        add(prefix, INCLUDE);
+        numIncluded++;
+    }
+
+    void exclude(String prefix) {
+        add(prefix, EXCLUDE);
+    }
+
+    private void add(String prefix, byte rule) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.addChild(prefix.charAt(i) == '.' ? '/' : prefix.charAt(i));
+        }
+        node.rule = rule;
+    }
+
+    boolean isEmpty() {
+        return numIncluded == 0;
+    }
+
+    // className is an internal name, like com/example/Foo
+    boolean matches(String className) {
+        Node node = root;
+        byte rule = root.rule;
+        for (int i = 0; i < className.length() && node != null; i++) {
+            node = node.child(className.charAt(i));
+            if (node != null && node.rule != NONE) {
+                rule = node.rule;
+            }
+        }
+        return rule == INCLUDE;
+    }
+}
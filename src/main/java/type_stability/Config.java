@@ -0,0 +1,267 @@
+package type_stability;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+class Config {
+    String agentArgs;
+    ClassFilter classFilter = new ClassFilter();
+    MethodFilter methodFilter = new MethodFilter();
+    String logFile;
+    String dumpDirectory;
+    Class<? extends NullnessLogger> loggerClass;
+    boolean async;
+    int ringSize = 1 << 11; // records per producer thread, 24 bytes each
+    AsyncNullnessLogger.OverflowPolicy overflowPolicy = AsyncNullnessLogger.OverflowPolicy.BLOCK;
+    int sampleEvery = 1;
+    int sampleRandom = 1;
+    int adaptiveThreshold = 0;
+    int convergeThreshold = 0;
+    boolean validate;
+    String timingsFile;
+    String cacheDirectory;
+    boolean jmx;
+    String statsFile;
+    int statsInterval = 10; // seconds
+    int checkpointInterval = 0; // seconds; 0 disables checkpoints
+    int topK = 1024; // combinations tracked in total
+    int sketchWidth = 1 << 14;
+    int durationSeconds = 0; // 0 means unbounded, unless attached
+    long maxEvents = 0; // 0 means unbounded
+    String methodTable; // set when running classes instrumented by OfflineInstrumenter
+    boolean readFields;
+    boolean privateCallees;
+    Set<String> includeFields;
+    Set<String> excludeFields;
+    boolean callSites;
+    String specializeProfile;
+    double overheadBudget = 0; // percent of CPU time; 0 disables the governor
+    boolean mergeable;
+    NullnessProfile profile; // loaded from specializeProfile by premain
+
+    // Everything besides the original class bytes which affects what the transformer produces; see ClassCache
+    String transformFingerprint() {
+        return "logger=" + loggerClass.getName() + ",sampled=" + isSampled() + ",fields=" +
+                fieldSelection().fingerprint() + ",methods=" + methodFilter.fingerprint() +
+                ",callSites=" + callSites;
+    }
+
+    FieldSelection fieldSelection() {
+        if (!readFields && includeFields == null && excludeFields == null) {
+            return FieldSelection.ALL;
+        }
+        return new FieldSelection(readFields, privateCallees, includeFields, excludeFields);
+    }
+
+    // The overhead governor throttles methods through the sampling check; see OverheadGovernor
+    boolean isSampled() {
+        return sampleEvery > 1 || sampleRandom > 1 || adaptiveThreshold > 0 || overheadBudget > 0;
+    }
+
+    // Only the agent's own loggers: when attached, the root logger and its handlers belong to the application. Held
+    // here because the LogManager only keeps loggers weakly, and would forget the level.
+    private static final Logger AGENT_LOGGER = Logger.getLogger("type_stability");
+
+    static void setLogLevel(Level level) {
+        AGENT_LOGGER.setLevel(level);
+    }
+
+    static Config parse(String args) {
+        Config result = new Config();
+        result.agentArgs = args;
+        result.loggerClass = NullnessLogger.class;
+        setLogLevel(Level.WARNING);
+
+        if (args == null || args.isEmpty()) {
+            throw new IllegalArgumentException("Agent arguments cannot be empty. Usage: -p packagePrefix [-p packagePrefix ...] [-x excludedPrefix ...] [--method glob ...] [--exclude-method glob ...] [-l logFile] [-d dumpDirectory] [--aggregate [--checkpoint seconds | --mergeable] [--call-sites] | --binary | --sketch [--top-k k] [--sketch-width n]] [--async [--ring-size n] [--overflow block|drop|spill]] [--sample-every n] [--sample-random n] [--adaptive n] [--converge n] [--validate] [--timings timingsFile] [-c cacheDirectory] [--jmx] [--stats statsFile [--stats-interval seconds]] [--duration seconds] [--max-events n] [--methods methodTable] [--read-fields [--private-callees]] [--include-fields f1,f2,...] [--exclude-fields f1,f2,...] [--specialize profile] [--overhead-budget percent]");
+        }
+
+        String[] tokens = args.split(" ");
+        for (int i = 0; i < tokens.length; i += 1) {
+            switch(tokens[i]) {
+                case "-p":
+                    result.classFilter.include(tokens[++i]);
+                    break;
+                case "-x":
+                    result.classFilter.exclude(tokens[++i]);
+                    break;
+                case "--method":
+                    result.methodFilter.include(tokens[++i]);
+                    break;
+                case "--exclude-method":
+                    result.methodFilter.exclude(tokens[++i]);
+                    break;
+                case "-l":
+                    result.logFile = tokens[++i];
+                    break;
+                case "-d":
+                    result.dumpDirectory = tokens[++i];
+                    break;
+                case "-c":
+                    result.cacheDirectory = tokens[++i];
+                    break;
+                case "-v":
+                    setLogLevel(Level.INFO);
+                    break;
+                case "--aggregate":
+                    result.loggerClass = NullnessAggregateLogger.class;
+                    break;
+                case "--checkpoint":
+                    result.checkpointInterval = Integer.parseInt(tokens[++i]);
+                    if (result.checkpointInterval <= 0) {
+                        throw new IllegalArgumentException("--checkpoint must be positive.");
+                    }
+                    break;
+                case "--mergeable":
+                    result.mergeable = true;
+                    break;
+                case "--call-sites":
+                    result.callSites = true;
+                    break;
+                case "--sketch":
+                    result.loggerClass = NullnessSketchLogger.class;
+                    break;
+                case "--top-k":
+                    result.topK = Integer.parseInt(tokens[++i]);
+                    break;
+                case "--sketch-width":
+                    result.sketchWidth = Integer.parseInt(tokens[++i]);
+                    break;
+                case "--binary":
+                    result.loggerClass = BinaryNullnessLogger.class;
+                    break;
+                case "--async":
+                    result.async = true;
+                    break;
+                case "--ring-size":
+                    result.ringSize = Integer.parseInt(tokens[++i]);
+                    if (Integer.bitCount(result.ringSize) != 1) {
+                        throw new IllegalArgumentException("--ring-size must be a power of two.");
+                    }
+                    break;
+                case "--overflow":
+                    result.overflowPolicy = AsyncNullnessLogger.OverflowPolicy.valueOf(tokens[++i].toUpperCase());
+                    break;
+                case "--sample-every":
+                    result.sampleEvery = Integer.parseInt(tokens[++i]);
+                    break;
+                case "--sample-random":
+                    result.sampleRandom = Integer.parseInt(tokens[++i]);
+                    break;
+                case "--adaptive":
+                    result.adaptiveThreshold = Integer.parseInt(tokens[++i]);
+                    break;
+                case "--converge":
+                    result.convergeThreshold = Integer.parseInt(tokens[++i]);
+                    break;
+                case "--validate":
+                    result.validate = true;
+                    break;
+                case "--timings":
+                    result.timingsFile = tokens[++i];
+                    break;
+                case "--duration":
+                    result.durationSeconds = Integer.parseInt(tokens[++i]);
+                    if (result.durationSeconds <= 0) {
+                        throw new IllegalArgumentException("--duration must be positive.");
+                    }
+                    break;
+                case "--max-events":
+                    result.maxEvents = Long.parseLong(tokens[++i]);
+                    if (result.maxEvents <= 0) {
+                        throw new IllegalArgumentException("--max-events must be positive.");
+                    }
+                    break;
+                case "--methods":
+                    result.methodTable = tokens[++i];
+                    break;
+                case "--read-fields":
+                    result.readFields = true;
+                    break;
+                case "--private-callees":
+                    result.privateCallees = true;
+                    break;
+                case "--include-fields":
+                    result.includeFields = FieldSelection.names(tokens[++i]);
+                    break;
+                case "--exclude-fields":
+                    result.excludeFields = FieldSelection.names(tokens[++i]);
+                    break;
+                case "--specialize":
+                    result.specializeProfile = tokens[++i];
+                    break;
+                case "--overhead-budget":
+                    result.overheadBudget = Double.parseDouble(tokens[++i]);
+                    if (!(result.overheadBudget > 0 && result.overheadBudget < 100)) {
+                        throw new IllegalArgumentException("--overhead-budget must be a percentage between 0 and 100.");
+                    }
+                    break;
+                case "--jmx":
+                    result.jmx = true;
+                    break;
+                case "--stats":
+                    result.statsFile = tokens[++i];
+                    break;
+                case "--stats-interval":
+                    result.statsInterval = Integer.parseInt(tokens[++i]);
+                    if (result.statsInterval <= 0) {
+                        throw new IllegalArgumentException("--stats-interval must be positive.");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid agent argument: " + tokens[i]);
+            }
+        }
+        if (result.classFilter.isEmpty()) {
+            throw new IllegalArgumentException("Package prefix required in agent arguments.");
+        }
+        if (result.loggerClass == BinaryNullnessLogger.class && result.logFile == null) {
+            throw new IllegalArgumentException("--binary requires a log file (-l logFile).");
+        }
+        if (result.checkpointInterval > 0
+                && (result.loggerClass != NullnessAggregateLogger.class || result.logFile == null)) {
+            throw new IllegalArgumentException("--checkpoint requires --aggregate and a log file (-l logFile).");
+        }
+        if (result.mergeable
+                && (result.loggerClass != NullnessAggregateLogger.class || result.checkpointInterval > 0)) {
+            // Checkpoints are deltas in the CSV format; see CheckpointMerger
+            throw new IllegalArgumentException("--mergeable requires --aggregate, and can't be combined with " +
+                    "--checkpoint.");
+        }
+        if (result.callSites && (result.loggerClass != NullnessAggregateLogger.class || result.logFile == null ||
+                result.async || result.cacheDirectory != null || result.methodTable != null)) {
+            // The logger takes the call site from the logging thread, and the IDs baked into the bytecode aren't
+            // persisted anywhere
+            throw new IllegalArgumentException("--call-sites requires --aggregate and a log file (-l logFile), and " +
+                    "can't be combined with --async, -c or --methods.");
+        }
+        if (result.privateCallees && !result.readFields) {
+            throw new IllegalArgumentException("--private-callees requires --read-fields.");
+        }
+        if (result.methodTable != null) {
+            if (!Files.isRegularFile(Paths.get(result.methodTable))) {
+                throw new IllegalArgumentException("No method table at " + result.methodTable + ".");
+            }
+            if (result.convergeThreshold > 0 || result.durationSeconds > 0 || result.maxEvents > 0) {
+                // These remove probes by retransforming classes, which can't undo offline instrumentation
+                throw new IllegalArgumentException("--methods can't be combined with --converge, --duration or " +
+                        "--max-events.");
+            }
+        }
+        if (result.specializeProfile != null) {
+            if (!Files.isRegularFile(Paths.get(result.specializeProfile))) {
+                throw new IllegalArgumentException("No profile at " + result.specializeProfile + ".");
+            }
+            if (result.cacheDirectory != null || result.methodTable != null || result.convergeThreshold > 0 ||
+                    result.durationSeconds > 0 || result.maxEvents > 0) {
+                // Specialized classes depend on the profile, and can't be retransformed since they have extra methods
+                throw new IllegalArgumentException("--specialize can't be combined with -c, --methods, --converge, " +
+                        "--duration or --max-events.");
+            }
+        }
+        return result;
+    }
+}
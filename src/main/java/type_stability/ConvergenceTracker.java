@@ -0,0 +1,148 @@
+package type_stability;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Notices when a method's profile has converged, i.e. it hasn't logged a new (fields, params, result) combination in
+// its last `threshold` recorded calls, and then has its class retransformed without the probes for that method. Long
+// running programs thus only pay for instrumentation while they warm up.
+class ConvergenceTracker {
+    private static final Logger LOGGER = Logger.getLogger(ConvergenceTracker.class.getName());
+
+    // Methods with more distinct outcomes than this are never considered converged
+    private static final int MAX_OUTCOMES = 64;
+    // How long to collect converged classes before retransforming them together
+    private static final long BATCH_MILLIS = 1000;
+
+    private static class MethodState {
+        // An insert-only open-addressing set of outcome keys; 0 marks an empty slot
+        final AtomicLongArray outcomes = new AtomicLongArray(MAX_OUTCOMES);
+        // Unsynchronized: a lost update only delays convergence a little
+        int callsSinceNewOutcome;
+        volatile boolean saturated;
+        volatile boolean converged;
+
+        // Returns whether key wasn't in the set yet
+        boolean add(long key) {
+            int mask = MAX_OUTCOMES - 1;
+            int start = (int) (key ^ (key >>> 32)) & mask;
+            for (int n = 0, i = start; n < MAX_OUTCOMES; n++, i = (i + 1) & mask) {
+                long k = outcomes.get(i);
+                if (k == key) {
+                    return false;
+                }
+                if (k == 0) {
+                    if (outcomes.compareAndSet(i, 0, key)) {
+                        return true;
+                    }
+                    if (outcomes.get(i) == key) {
+                        return false;
+                    }
+                }
+            }
+            saturated = true;
+            return true;
+        }
+    }
+
+    private static int threshold = 0; // 0 disables tracking
+    private static Instrumentation inst;
+    private static volatile MethodState[] states = new MethodState[1024];
+    // Internal names of classes with newly converged methods
+    private static final LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<>();
+
+    static void configure(int threshold, Instrumentation inst) {
+        if (threshold <= 0) {
+            return;
+        }
+        if (!inst.isRetransformClassesSupported()) {
+            LOGGER.warning("This JVM can't retransform classes; methods will stay instrumented after converging.");
+            return;
+        }
+        ConvergenceTracker.threshold = threshold;
+        ConvergenceTracker.inst = inst;
+        Thread t = new Thread(ConvergenceTracker::retransformLoop, "type-stability-deinstrumenter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    static boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    static boolean isConverged(int methodId) {
+        MethodState[] s = states;
+        return methodId < s.length && s[methodId] != null && s[methodId].converged;
+    }
+
+    private static MethodState state(int methodId) {
+        MethodState[] s = states;
+        if (methodId < s.length && s[methodId] != null) {
+            return s[methodId];
+        }
+        synchronized (ConvergenceTracker.class) {
+            s = states;
+            if (methodId >= s.length) {
+                s = Arrays.copyOf(s, Math.max(s.length * 2, methodId + 1));
+            }
+            if (s[methodId] == null) {
+                s[methodId] = new MethodState();
+            }
+            states = s; // publish the new element, even if the array didn't grow
+            return s[methodId];
+        }
+    }
+
+    static void observe(int methodId, long fields, long parameters, char result) {
+        MethodState s = state(methodId);
+        if (s.converged || s.saturated) {
+            return;
+        }
+        long key = (fields * 0x9E3779B97F4A7C15L ^ parameters) * 31 + result | 1; // never 0
+        if (s.add(key)) {
+            s.callsSinceNewOutcome = 0;
+        } else if (++s.callsSinceNewOutcome >= threshold) {
+            synchronized (s) {
+                if (!s.converged) {
+                    s.converged = true;
+                    pending.add(MethodRegistry.get(methodId).className);
+                }
+            }
+        }
+    }
+
+    private static void retransformLoop() {
+        try {
+            while (true) {
+                Set<String> classNames = new HashSet<>();
+                classNames.add(pending.take());
+                Thread.sleep(BATCH_MILLIS);
+                pending.drainTo(classNames);
+                retransform(classNames);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void retransform(Set<String> classNames) {
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            if (!classNames.contains(c.getName().replace('.', '/')) || !inst.isModifiableClass(c)) {
+                continue;
+            }
+            LOGGER.info("Retransforming " + c.getName() + " to remove converged probes.");
+            try {
+                inst.retransformClasses(c);
+            } catch (UnmodifiableClassException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not retransform " + c.getName() + ":", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package type_stability;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Decides which fields of the receiver a method's probe records. By default that's every nullable instance field of its
+// class. With --read-fields, it's only those the method itself reads from `this` (and with --private-callees, those its
+// private instance callees read, transitively), which saves probes in wide classes from loading fields the method never
+// looks at. --include-fields and --exclude-fields further restrict the fields by name.
+//
+// The analysis recognizes reads of the form `aload 0; getfield`, in methods which never overwrite local 0. Reads
+// through other copies of `this` are missed, and calls to private methods are assumed to be made on `this`.
+class FieldSelection {
+    static final FieldSelection ALL = new FieldSelection(false, false, null, null);
+
+    private final boolean readOnly;
+    private final boolean followPrivateCallees;
+    private final Set<String> include; // null includes every field
+    private final Set<String> exclude; // null excludes none
+
+    FieldSelection(boolean readOnly, boolean followPrivateCallees, Set<String> include, Set<String> exclude) {
+        this.readOnly = readOnly;
+        this.followPrivateCallees = followPrivateCallees;
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    // Parse a comma-separated list of field names
+    static Set<String> names(String list) {
+        return new HashSet<>(Arrays.asList(list.split(",")));
+    }
+
+    // Whether this records anything other than every field
+    boolean isEnabled() {
+        return readOnly || include != null || exclude != null;
+    }
+
+    // Everything which affects the selected fields; see Config.transformFingerprint
+    String fingerprint() {
+        return readOnly + "/" + followPrivateCallees + "/" + (include != null ? new TreeSet<>(include) : "") + "/" +
+                (exclude != null ? new TreeSet<>(exclude) : "");
+    }
+
+    // The nullable instance fields of cn whose nullness mn's probe records, in declaration order
+    List<FieldNode> select(ClassNode cn, MethodNode mn) {
+        List<FieldNode> fields = new ArrayList<>();
+        if ((mn.access & Opcodes.ACC_STATIC) != 0) {
+            return fields;
+        }
+        Set<String> read = readOnly ? readFields(cn, mn) : null;
+        for (FieldNode fn : cn.fields) {
+            if ((fn.access & Opcodes.ACC_STATIC) != 0 || !isNullable(fn.desc)) {
+                continue;
+            }
+            if ((read != null && !read.contains(fn.name)) || (include != null && !include.contains(fn.name)) ||
+                    (exclude != null && exclude.contains(fn.name))) {
+                continue;
+            }
+            fields.add(fn);
+        }
+        return fields;
+    }
+
+    private static boolean isNullable(String desc) {
+        return desc.startsWith("L") || desc.startsWith("[");
+    }
+
+    // The names of the fields of cn which mn (and perhaps its private callees) reads from `this`
+    private Set<String> readFields(ClassNode cn, MethodNode mn) {
+        Set<String> read = new HashSet<>();
+        Set<MethodNode> visited = new HashSet<>();
+        Deque<MethodNode> pending = new ArrayDeque<>();
+        pending.add(mn);
+        while (!pending.isEmpty()) {
+            MethodNode m = pending.remove();
+            // A callee may already be instrumented, but its probe only reads fields the callee reads anyway
+            if (!visited.add(m) || m.instructions == null || overwritesThis(m)) {
+                continue;
+            }
+            for (AbstractInsnNode insn : m.instructions) {
+                if (insn.getOpcode() == Opcodes.GETFIELD) {
+                    FieldInsnNode field = (FieldInsnNode) insn;
+                    if (field.owner.equals(cn.name) && isLoadOfThis(previous(insn))) {
+                        read.add(field.name);
+                    }
+                } else if (followPrivateCallees && (insn.getOpcode() == Opcodes.INVOKESPECIAL ||
+                        insn.getOpcode() == Opcodes.INVOKEVIRTUAL)) {
+                    MethodNode callee = privateInstanceMethod(cn, (MethodInsnNode) insn);
+                    if (callee != null) {
+                        pending.add(callee);
+                    }
+                }
+            }
+        }
+        return read;
+    }
+
+    private static boolean overwritesThis(MethodNode m) {
+        for (AbstractInsnNode insn : m.instructions) {
+            if (insn.getOpcode() == Opcodes.ASTORE && ((VarInsnNode) insn).var == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The closest instruction before insn which is an actual instruction, not a label, line number or frame
+    private static AbstractInsnNode previous(AbstractInsnNode insn) {
+        AbstractInsnNode p = insn.getPrevious();
+        while (p != null && p.getOpcode() < 0) {
+            p = p.getPrevious();
+        }
+        return p;
+    }
+
+    private static boolean isLoadOfThis(AbstractInsnNode insn) {
+        return insn != null && insn.getOpcode() == Opcodes.ALOAD && ((VarInsnNode) insn).var == 0;
+    }
+
+    private static MethodNode privateInstanceMethod(ClassNode cn, MethodInsnNode call) {
+        if (!call.owner.equals(cn.name) || call.name.equals("<init>")) {
+            return null;
+        }
+        for (MethodNode m : cn.methods) {
+            if (m.name.equals(call.name) && m.desc.equals(call.desc)) {
+                boolean isPrivate = (m.access & Opcodes.ACC_PRIVATE) != 0;
+                boolean isStatic = (m.access & Opcodes.ACC_STATIC) != 0;
+                return isPrivate && !isStatic ? m : null;
+            }
+        }
+        return null;
+    }
+}
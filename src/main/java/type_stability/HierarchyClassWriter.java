@@ -0,0 +1,163 @@
+package type_stability;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+// A ClassWriter which computes frames without loading classes. ClassWriter.getCommonSuperClass uses Class.forName,
+// which can fail (or load classes in the wrong order) while the JVM is in the middle of loading another class. Instead,
+// we resolve superclasses from class headers: those of the classes being instrumented, which are indexed as they're
+// transformed, and otherwise read on demand from the .class resources of the class loader and cached. Only the
+// hierarchies frame computations actually walk are thus read, rather than every class the JVM loads. Classes with no
+// resource (e.g. generated at run time) fall back to loading.
+class HierarchyClassWriter extends ClassWriter {
+    private static final Logger LOGGER = Logger.getLogger(HierarchyClassWriter.class.getName());
+
+    private static class ClassHeader {
+        final String superName; // null for java/lang/Object
+        final boolean isInterface;
+
+        ClassHeader(String superName, boolean isInterface) {
+            this.superName = superName;
+            this.isInterface = isInterface;
+        }
+    }
+
+    // Keyed by internal name. Class loaders may in principle define different classes with the same name; this index
+    // assumes they agree on the hierarchy.
+    private static final ConcurrentHashMap<String, ClassHeader> index = new ConcurrentHashMap<>();
+
+    // Record the header of a class the agent has seen
+    static void index(byte[] classfile) {
+        try {
+            readHeader(classfile);
+        } catch (RuntimeException e) {
+            // Not a well-formed class file; the JVM will complain about it, not us
+        }
+    }
+
+    // Parse just enough of a class file to find its name, superclass and access flags, and add them to the index.
+    // This deliberately doesn't use ClassReader, which rejects class file versions newer than it knows about, even
+    // though the header hasn't changed since Java 1.0. Returns the class's header.
+    private static ClassHeader readHeader(byte[] b) {
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        buffer.position(8); // magic, minor and major version
+        int poolSize = buffer.getShort() & 0xffff;
+        int[] offsets = new int[poolSize];
+        for (int i = 1; i < poolSize; i++) {
+            offsets[i] = buffer.position();
+            int tag = buffer.get();
+            switch (tag) {
+                case 1: // Utf8
+                    int length = buffer.getShort() & 0xffff;
+                    buffer.position(buffer.position() + length);
+                    break;
+                case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                    buffer.position(buffer.position() + 2);
+                    break;
+                case 15: // MethodHandle
+                    buffer.position(buffer.position() + 3);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    buffer.position(buffer.position() + 4);
+                    break;
+                case 5: case 6: // Long and Double take two entries
+                    buffer.position(buffer.position() + 8);
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag + ".");
+            }
+        }
+        int access = buffer.getShort() & 0xffff;
+        String name = className(b, offsets, buffer.getShort() & 0xffff);
+        int superIndex = buffer.getShort() & 0xffff;
+        ClassHeader header = new ClassHeader(superIndex == 0 ? null : className(b, offsets, superIndex),
+                (access & Opcodes.ACC_INTERFACE) != 0);
+        ClassHeader existing = index.putIfAbsent(name, header);
+        return existing != null ? existing : header;
+    }
+
+    // The name of the CONSTANT_Class entry at classIndex
+    private static String className(byte[] b, int[] offsets, int classIndex) {
+        int nameOffset = offsets[((b[offsets[classIndex] + 1] & 0xff) << 8) | (b[offsets[classIndex] + 2] & 0xff)];
+        int length = ((b[nameOffset + 1] & 0xff) << 8) | (b[nameOffset + 2] & 0xff);
+        return new String(b, nameOffset + 3, length, StandardCharsets.UTF_8);
+    }
+
+    private final ClassLoader loader;
+
+    HierarchyClassWriter(ClassReader classReader, int flags, ClassLoader loader) {
+        super(classReader, flags);
+        this.loader = loader;
+    }
+
+    private ClassHeader header(String type) {
+        ClassHeader header = index.get(type);
+        if (header != null) {
+            return header;
+        }
+        String resource = type + ".class";
+        try (InputStream in = loader != null
+                ? loader.getResourceAsStream(resource)
+                : ClassLoader.getSystemResourceAsStream(resource)) {
+            if (in == null) {
+                return null;
+            }
+            return readHeader(in.readAllBytes());
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        Set<String> ancestors = new HashSet<>();
+        for (String t = type1; t != null; ) {
+            ClassHeader header = header(t);
+            if (header == null) {
+                return fallback(type1, type2, t);
+            }
+            if (header.isInterface) {
+                return "java/lang/Object";
+            }
+            ancestors.add(t);
+            t = header.superName;
+        }
+        for (String t = type2; t != null; ) {
+            if (ancestors.contains(t)) {
+                return t;
+            }
+            ClassHeader header = header(t);
+            if (header == null) {
+                return fallback(type1, type2, t);
+            }
+            if (header.isInterface) {
+                return "java/lang/Object";
+            }
+            t = header.superName;
+        }
+        return "java/lang/Object";
+    }
+
+    @Override
+    protected ClassLoader getClassLoader() {
+        return loader != null ? loader : super.getClassLoader();
+    }
+
+    // We couldn't find the bytes of missing; let ASM load the classes as it normally would.
+    private String fallback(String type1, String type2, String missing) {
+        LOGGER.info("No class bytes for " + missing + "; loading classes to find the superclass of " + type1 +
+                " and " + type2 + ".");
+        return super.getCommonSuperClass(type1, type2);
+    }
+}
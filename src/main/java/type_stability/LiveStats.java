@@ -0,0 +1,223 @@
+package type_stability;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+// A live view of the profile and of the agent's overhead while the program runs: with --jmx, a TypeStabilityMXBean
+// registered with the platform MBean server, and with --stats, a snapshot file rewritten every few seconds, which
+// survives the JVM being killed. Probes only add to per-method LongAdders; readers sum them without blocking anyone.
+class LiveStats implements TypeStabilityMXBean {
+    private static final Logger LOGGER = Logger.getLogger(LiveStats.class.getName());
+
+    static final String OBJECT_NAME = "type_stability:type=TypeStability";
+
+    // Per method: null, non-null and throwing events (indexed by result - '0'), and the events' total weight
+    private static final int NUM_COUNTERS = 4;
+    private static final int WEIGHT = 3;
+
+    private static boolean enabled = false;
+    // Each method's counters are created on its first event. Read without locking; see MethodRegistry.byId.
+    private static volatile LongAdder[] counters = new LongAdder[1024 * NUM_COUNTERS];
+
+    static void configure(boolean jmx, String statsFile, int intervalSeconds) throws JMException {
+        if (!jmx && statsFile == null) {
+            return;
+        }
+        enabled = true;
+        if (jmx) {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new LiveStats(), new ObjectName(OBJECT_NAME));
+        }
+        if (statsFile != null) {
+            LiveStats stats = new LiveStats();
+            Path path = Paths.get(statsFile);
+            Thread t = new Thread(() -> stats.writeLoop(path, intervalSeconds), "type-stability-stats");
+            t.setDaemon(true);
+            t.start();
+            // The final snapshot agrees with the profile the logger writes at shutdown
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> stats.writeSnapshot(path)));
+        }
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Count events without exposing them, for ProfilingWindow's event budget
+    static void enable() {
+        enabled = true;
+    }
+
+    static long eventCount() {
+        return sum(0, WEIGHT);
+    }
+
+    private static LongAdder[] counters(int methodId) {
+        LongAdder[] c = counters;
+        int base = methodId * NUM_COUNTERS;
+        if (base < c.length && c[base] != null) {
+            return c;
+        }
+        synchronized (LiveStats.class) {
+            c = counters;
+            if (base >= c.length) {
+                c = Arrays.copyOf(c, Math.max(c.length * 2, base + NUM_COUNTERS));
+            }
+            if (c[base] == null) {
+                for (int i = NUM_COUNTERS - 1; i >= 0; i--) {
+                    c[base + i] = new LongAdder();
+                }
+            }
+            counters = c; // publish the new elements, even if the array didn't grow
+            return c;
+        }
+    }
+
+    static void count(int methodId, char result, int weight) {
+        LongAdder[] c = counters(methodId);
+        int base = methodId * NUM_COUNTERS;
+        c[base + (result - NullnessLogger.NULL)].increment();
+        c[base + WEIGHT].add(weight);
+    }
+
+    // The sum over all methods of counters [first, end)
+    private static long sum(int first, int end) {
+        LongAdder[] c = counters;
+        long total = 0;
+        for (int base = 0; base < c.length; base += NUM_COUNTERS) {
+            if (c[base] != null) {
+                for (int i = first; i < end; i++) {
+                    total += c[base + i].sum();
+                }
+            }
+        }
+        return total;
+    }
+
+    // For getEventsPerSecond. Guarded by this.
+    private long lastEvents = 0;
+    private long lastNanos = System.nanoTime();
+
+    @Override
+    public long getEventCount() {
+        return eventCount();
+    }
+
+    @Override
+    public synchronized double getEventsPerSecond() {
+        long events = getEventCount();
+        long now = System.nanoTime();
+        double rate = (events - lastEvents) * 1e9 / Math.max(1, now - lastNanos);
+        lastEvents = events;
+        lastNanos = now;
+        return rate;
+    }
+
+    @Override
+    public long getSampledOutCount() {
+        return sum(WEIGHT, WEIGHT + 1) - getEventCount();
+    }
+
+    @Override
+    public long getDroppedEventCount() {
+        return NullnessLogger.instance != null ? NullnessLogger.instance.droppedCount() : 0;
+    }
+
+    @Override
+    public long getTransformedClassCount() {
+        return TransformStats.numClasses.get();
+    }
+
+    @Override
+    public long getCachedClassCount() {
+        return TransformStats.cacheHits.get();
+    }
+
+    @Override
+    public long getInstrumentedMethodCount() {
+        return TransformStats.numMethods.get();
+    }
+
+    @Override
+    public long getTransformMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(TransformStats.totalNanos.get());
+    }
+
+    @Override
+    public List<MethodOutcomes> getMethodOutcomes() {
+        LongAdder[] c = counters;
+        List<MethodOutcomes> result = new ArrayList<>();
+        for (int id = 0; id * NUM_COUNTERS < c.length; id++) {
+            int base = id * NUM_COUNTERS;
+            if (c[base] == null) {
+                continue;
+            }
+            MethodRegistry.MethodInfo method = MethodRegistry.get(id);
+            result.add(new MethodOutcomes(method.className, method.methodName, method.descriptor,
+                    c[base].sum(), c[base + 1].sum(), c[base + 2].sum()));
+        }
+        return result;
+    }
+
+    private void writeLoop(Path path, int intervalSeconds) {
+        try {
+            while (true) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(intervalSeconds));
+                writeSnapshot(path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Layout: "name,value" lines for the totals, a blank line, then one
+    // "class,method,descriptor,null,nonnull,throw" line per method with events
+    private synchronized void writeSnapshot(Path path) {
+        try {
+            Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            try {
+                try (Writer writer = Files.newBufferedWriter(tmp)) {
+                    writeSnapshot(writer);
+                }
+                // Readers never see a partial snapshot
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Could not write live stats to " + path + ": " + e.getMessage());
+        }
+    }
+
+    private void writeSnapshot(Writer writer) throws IOException {
+        writer.append("events,").append(Long.toString(getEventCount())).append('\n');
+        writer.append("eventsPerSecond,").append(String.format("%.1f", getEventsPerSecond())).append('\n');
+        writer.append("sampledOut,").append(Long.toString(getSampledOutCount())).append('\n');
+        writer.append("dropped,").append(Long.toString(getDroppedEventCount())).append('\n');
+        writer.append("transformedClasses,").append(Long.toString(getTransformedClassCount())).append('\n');
+        writer.append("cachedClasses,").append(Long.toString(getCachedClassCount())).append('\n');
+        writer.append("instrumentedMethods,").append(Long.toString(getInstrumentedMethodCount())).append('\n');
+        writer.append("transformMillis,").append(Long.toString(getTransformMillis())).append('\n');
+        writer.append("\nclass,method,descriptor,null,nonnull,throw\n");
+        for (MethodOutcomes m : getMethodOutcomes()) {
+            writer.append(m.getClassName()).append(',')
+                    .append(m.getMethodName()).append(',')
+                    .append(m.getDescriptor()).append(',')
+                    .append(Long.toString(m.getNullReturns())).append(',')
+                    .append(Long.toString(m.getNonNullReturns())).append(',')
+                    .append(Long.toString(m.getThrows())).append('\n');
+        }
+    }
+}
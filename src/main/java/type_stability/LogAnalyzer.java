@@ -0,0 +1,632 @@
+package type_stability;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Summarizes nullness logs like dacapo/analysis.py's print_stats, plus a ranking of the least stable methods, without
+// loading the log into memory: each file is memory-mapped and parsed in parallel chunks by a fork-join pool, and every
+// chunk counts into primitive tables which are merged at the end.
+//
+// Reads all the text formats the agent writes:
+//   - raw logs (NullnessLogger): class,method,fields,params,result[,weight], without a header; every line is one event
+//   - aggregate profiles (--aggregate, or CheckpointMerger's output): a method,fields,params,result,count[,estimate]
+//     header, with the method table in <file>.methods or after a blank line. Profiles with call sites (--call-sites)
+//     have a leading callsite column, which is ignored: their methods are summarized over all call sites. Method IDs
+//     differ between files, so methods are matched across files by the class, method and descriptor in the table.
+//   - sketch profiles (--sketch): like aggregate profiles, after a "# count-min" line
+//   - the older fields,params,result,count profiles in dacapo/, which have no method column
+//   - mergeable profiles (--mergeable, or ProfileMerger's output; see ProfileFormat), which name the method in every
+//     row; like in raw logs, the methods are summarized by name
+//
+// Usage: java -cp TypeStabilityAgent.jar type_stability.LogAnalyzer [--top n] [--min-events n] logFile...
+public class LogAnalyzer {
+    private static final long CHUNK_SIZE = 64L << 20;
+    // Chunks map this much past their end to finish their last line
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+
+    private static final int NULL = 0;
+    private static final int NONNULL = 1;
+    private static final int THROW = 2;
+
+    enum Format {
+        RAW,
+        AGGREGATE,
+        LEGACY_AGGREGATE,
+        PROFILE
+    }
+
+    // Where a file's events are, and how to read them
+    static class Layout {
+        final Path path;
+        final Format format;
+        final long dataStart;
+        final long dataEnd;
+        final String[] methodNames; // by method ID, for aggregate profiles
+        // By method ID, for aggregate profiles: the method's key, as in profiles which name their methods (see
+        // methodKey), so that a method has the same key in every file however its IDs differ; 0 if the ID isn't in
+        // the method table
+        final long[] methodKeys;
+        final boolean callSiteColumn;
+
+        Layout(Path path, Format format, long dataStart, long dataEnd) {
+            this(path, format, dataStart, dataEnd, null, false);
+        }
+
+        Layout(Path path, Format format, long dataStart, long dataEnd, List<String> table, boolean callSiteColumn) {
+            this.path = path;
+            this.format = format;
+            this.dataStart = dataStart;
+            this.dataEnd = dataEnd;
+            this.callSiteColumn = callSiteColumn;
+            this.methodNames = methodNames(table);
+            this.methodKeys = methodKeys(table);
+        }
+
+        // The key of a method ID of this file. IDs missing from the method table only mean something within the file,
+        // so their key is the file's and the ID's.
+        long methodKey(int id) {
+            if (methodKeys != null && id < methodKeys.length && methodKeys[id] != 0) {
+                return methodKeys[id];
+            }
+            byte[] bytes = (path.toAbsolutePath() + "#" + id).getBytes(StandardCharsets.UTF_8);
+            return LogAnalyzer.methodKey(bytes, 0, bytes.length);
+        }
+    }
+
+    // An open-addressing map from nonzero long keys to long counts
+    static class LongCounter {
+        long[] keys = new long[16];
+        long[] counts = new long[16];
+        int size = 0;
+
+        void add(long key, long count) {
+            int mask = keys.length - 1;
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                keys[i] = key;
+                if (++size * 2 > keys.length) {
+                    counts[i] += count;
+                    grow();
+                    return;
+                }
+            }
+            counts[i] += count;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new long[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    add(oldKeys[i], oldCounts[i]);
+                }
+            }
+        }
+
+        void addAll(LongCounter other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.keys[i] != 0) {
+                    add(other.keys[i], other.counts[i]);
+                }
+            }
+        }
+
+        long max() {
+            long max = 0;
+            for (long c : counts) {
+                max = Math.max(max, c);
+            }
+            return max;
+        }
+    }
+
+    static class MethodStats {
+        final String name;
+        final long[] results = new long[3];
+        // Keyed by a hash of (fields, params, result)
+        final LongCounter outcomes = new LongCounter();
+
+        MethodStats(String name) {
+            this.name = name;
+        }
+
+        long total() {
+            return results[NULL] + results[NONNULL] + results[THROW];
+        }
+
+        // The share of events with the method's most common result
+        double resultStability() {
+            return (double) Math.max(results[NULL], Math.max(results[NONNULL], results[THROW])) / total();
+        }
+
+        // The share of events with the method's most common (fields, params, result) combination
+        double outcomeStability() {
+            return (double) outcomes.max() / total();
+        }
+    }
+
+    // Counts of one chunk, and after merging, of everything
+    static class Stats {
+        final long[] total = new long[3];
+        final long[] nullFields = new long[3];
+        final long[] nonNullFields = new long[3];
+        final long[] nullParams = new long[3];
+        final long[] nonNullParams = new long[3];
+        // Keyed by a hash of class, method and (except in raw logs, which don't have it) descriptor; see methodKey
+        final LongCounter methodIndex = new LongCounter();
+        final List<MethodStats> methods = new ArrayList<>();
+
+        // The method with this key, or null
+        MethodStats find(long key) {
+            int mask = methodIndex.keys.length - 1;
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (methodIndex.keys[i] != 0) {
+                if (methodIndex.keys[i] == key) {
+                    return methods.get((int) methodIndex.counts[i]);
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        MethodStats add(long key, String name) {
+            methodIndex.add(key, methods.size());
+            MethodStats stats = new MethodStats(name);
+            methods.add(stats);
+            return stats;
+        }
+
+        void merge(Stats other) {
+            for (int r = 0; r < 3; r++) {
+                total[r] += other.total[r];
+                nullFields[r] += other.nullFields[r];
+                nonNullFields[r] += other.nonNullFields[r];
+                nullParams[r] += other.nullParams[r];
+                nonNullParams[r] += other.nonNullParams[r];
+            }
+            for (int i = 0; i < other.methodIndex.keys.length; i++) {
+                long key = other.methodIndex.keys[i];
+                if (key != 0) {
+                    MethodStats from = other.methods.get((int) other.methodIndex.counts[i]);
+                    MethodStats to = find(key);
+                    if (to == null) {
+                        to = add(key, from.name);
+                    }
+                    for (int r = 0; r < 3; r++) {
+                        to.results[r] += from.results[r];
+                    }
+                    to.outcomes.addAll(from.outcomes);
+                }
+            }
+        }
+    }
+
+    // Parses the lines which start in [start, end) of a file
+    @SuppressWarnings("serial") // never serialized
+    static class ChunkTask extends RecursiveTask<Stats> {
+        private final Layout layout;
+        private final long start;
+        private final long end;
+
+        ChunkTask(Layout layout, long start, long end) {
+            this.layout = layout;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Stats compute() {
+            if (end - start > CHUNK_SIZE) {
+                long middle = start + (end - start) / 2;
+                ChunkTask left = new ChunkTask(layout, start, middle);
+                left.fork();
+                Stats stats = new ChunkTask(layout, middle, end).compute();
+                stats.merge(left.join());
+                return stats;
+            }
+            try (FileChannel channel = FileChannel.open(layout.path, StandardOpenOption.READ)) {
+                // Map from the byte before the chunk, to tell whether a line starts right at its beginning
+                long mapStart = start > layout.dataStart ? start - 1 : start;
+                long mapEnd = Math.min(layout.dataEnd, end + MAX_LINE_LENGTH);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+                Stats stats = new Stats();
+                int limit = (int) (end - mapStart);
+                int pos = 0;
+                // A line which starts before this chunk belongs to the previous one
+                if (mapStart < start) {
+                    while (pos < buffer.limit() && buffer.get(pos) != '\n') {
+                        pos++;
+                    }
+                    pos++;
+                }
+                while (pos < limit) {
+                    int lineEnd = pos;
+                    while (lineEnd < buffer.limit() && buffer.get(lineEnd) != '\n') {
+                        lineEnd++;
+                    }
+                    if (lineEnd == buffer.limit() && mapEnd < layout.dataEnd) {
+                        throw new IllegalStateException("Line longer than " + MAX_LINE_LENGTH + " bytes at offset " +
+                                (mapStart + pos) + " of " + layout.path + ".");
+                    }
+                    parseLine(buffer, pos, lineEnd, layout, stats);
+                    pos = lineEnd + 1;
+                }
+                return stats;
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read " + layout.path + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static long hash(long h, byte b) {
+        return (h ^ b) * 0x100000001B3L;
+    }
+
+    // The key of the method whose class,method[,descriptor] columns are in [from, to) of bytes; never 0
+    static long methodKey(byte[] bytes, int from, int to) {
+        long key = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            key = hash(key, bytes[i]);
+        }
+        return key | 1;
+    }
+
+    // Accumulate the line in [from, to) of buffer into stats
+    static void parseLine(ByteBuffer buffer, int from, int to, Layout layout, Stats stats) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        if (to == from) {
+            return;
+        }
+        if (layout.callSiteColumn) {
+            while (from < to && buffer.get(from) != ',') {
+                from++;
+            }
+            from++;
+        }
+        // Find the first eight columns; a line has at most nine
+        int[] commas = new int[8];
+        int numCommas = 0;
+        for (int i = from; i < to && numCommas < commas.length; i++) {
+            if (buffer.get(i) == ',') {
+                commas[numCommas++] = i;
+            }
+        }
+        int methodColumns = layout.format == Format.RAW ? 2 : layout.format == Format.AGGREGATE ? 1
+                : layout.format == Format.PROFILE ? 4 : 0;
+        int minCommas = methodColumns + 2 + (layout.format == Format.RAW ? 0 : 1);
+        if (numCommas < minCommas) {
+            throw new IllegalArgumentException("Malformed line in " + layout.path + ": " + line(buffer, from));
+        }
+        int fieldsStart = methodColumns == 0 ? from : commas[methodColumns - 1] + 1;
+        int paramsStart = commas[methodColumns] + 1;
+        int resultStart = commas[methodColumns + 1] + 1;
+        int result = buffer.get(resultStart) - '0';
+        if (result < NULL || result > THROW) {
+            throw new IllegalArgumentException("Malformed line in " + layout.path + ": " + line(buffer, from));
+        }
+        long count = 1;
+        if (layout.format != Format.RAW) {
+            int countEnd = numCommas > methodColumns + 3 ? commas[methodColumns + 3] : to;
+            count = parseLong(buffer, commas[methodColumns + 2] + 1, countEnd);
+        }
+
+        boolean nullFields = contains(buffer, fieldsStart, paramsStart - 1, (byte) '0');
+        boolean nullParams = contains(buffer, paramsStart, resultStart - 1, (byte) '0');
+        stats.total[result] += count;
+        (nullFields ? stats.nullFields : stats.nonNullFields)[result] += count;
+        (nullParams ? stats.nullParams : stats.nonNullParams)[result] += count;
+
+        if (methodColumns == 0) {
+            return;
+        }
+        long methodKey;
+        if (layout.format == Format.AGGREGATE) {
+            methodKey = layout.methodKey((int) parseLong(buffer, from, commas[0]));
+        } else {
+            // The class and method, and in profiles the descriptor, so that overloads are told apart
+            int keyEnd = layout.format == Format.PROFILE ? commas[2] : commas[1];
+            methodKey = 0xcbf29ce484222325L;
+            for (int i = from; i < keyEnd; i++) {
+                methodKey = hash(methodKey, buffer.get(i));
+            }
+            methodKey |= 1; // never 0
+        }
+        long outcome = 0xcbf29ce484222325L;
+        for (int i = fieldsStart; i <= resultStart; i++) {
+            outcome = hash(outcome, buffer.get(i));
+        }
+        MethodStats method = stats.find(methodKey);
+        if (method == null) {
+            // Names are only built for a chunk's first line of each method
+            method = stats.add(methodKey, methodName(buffer, from, commas, layout));
+        }
+        method.results[result] += count;
+        method.outcomes.add(outcome | 1, count);
+    }
+
+    private static String methodName(ByteBuffer buffer, int from, int[] commas, Layout layout) {
+        if (layout.format == Format.AGGREGATE) {
+            int id = (int) parseLong(buffer, from, commas[0]);
+            return layout.methodNames != null && id < layout.methodNames.length && layout.methodNames[id] != null
+                    ? layout.methodNames[id]
+                    : "#" + id;
+        }
+        byte[] bytes = new byte[commas[1] - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8).replace(',', '.');
+    }
+
+    private static boolean contains(ByteBuffer buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseLong(ByteBuffer buffer, int from, int to) {
+        long value = 0;
+        boolean negative = buffer.get(from) == '-';
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            value = value * 10 + (buffer.get(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    // Work out a file's format from its first lines, and where its method table is
+    static Layout layout(Path path) throws IOException {
+        long size = Files.size(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_LINE_LENGTH));
+            long dataStart = 0;
+            String firstLine = line(head, 0);
+            if (firstLine.startsWith(ProfileFormat.MAGIC)) {
+                // Skip the metadata, up to and including the column line
+                while (firstLine.startsWith("#")) {
+                    dataStart += firstLine.length() + 1;
+                    firstLine = line(head, (int) dataStart);
+                }
+                return new Layout(path, Format.PROFILE, dataStart + firstLine.length() + 1, size, null,
+                        firstLine.startsWith("caller,"));
+            }
+            if (firstLine.startsWith("# count-min")) {
+                dataStart = firstLine.length() + 1;
+                firstLine = line(head, (int) dataStart);
+            }
+            if (firstLine.startsWith("fields,params,result,count")) {
+                return new Layout(path, Format.LEGACY_AGGREGATE, dataStart + firstLine.length() + 1, size);
+            }
+            boolean callSiteColumn = firstLine.startsWith("callsite,");
+            if (callSiteColumn) {
+                firstLine = firstLine.substring("callsite,".length());
+                dataStart += "callsite,".length();
+            }
+            if (!firstLine.startsWith("method,fields,params,result,count")) {
+                return new Layout(path, Format.RAW, 0, size);
+            }
+            dataStart += firstLine.length() + 1;
+
+            // The method table is either in its own file (for profiles written to stdout, whatever the agent wrote to
+            // stderr), or after a blank line at the end of this one
+            Path tableFile = Paths.get(NullnessAggregateLogger.methodTableFile(path.toString()));
+            long dataEnd = size;
+            List<String> table = null;
+            if (Files.exists(tableFile)) {
+                table = Files.readAllLines(tableFile);
+            } else {
+                byte[] marker = "\n\nid,class,method,descriptor".getBytes(StandardCharsets.UTF_8);
+                long tableStart = findLast(channel, size, marker);
+                if (tableStart >= 0) {
+                    dataEnd = tableStart + 1;
+                    MappedByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, tableStart + 2,
+                            size - tableStart - 2);
+                    byte[] bytes = new byte[tail.remaining()];
+                    tail.get(bytes);
+                    table = Arrays.asList(new String(bytes, StandardCharsets.UTF_8).split("\n"));
+                }
+            }
+            return new Layout(path, Format.AGGREGATE, dataStart, dataEnd, table, callSiteColumn);
+        }
+    }
+
+    private static String line(ByteBuffer buffer, int from) {
+        int to = from;
+        while (to < buffer.limit() && buffer.get(to) != '\n') {
+            to++;
+        }
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The offset of the last occurrence of marker in the file, or -1
+    private static long findLast(FileChannel channel, long size, byte[] marker) throws IOException {
+        long position = size;
+        while (position > 0) {
+            long start = Math.max(0, position - CHUNK_SIZE);
+            long end = Math.min(size, position + marker.length);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            for (int i = (int) (position - start) - 1; i >= 0; i--) {
+                int j = 0;
+                while (j < marker.length && i + j < buffer.limit() && buffer.get(i + j) == marker[j]) {
+                    j++;
+                }
+                if (j == marker.length) {
+                    return start + i;
+                }
+            }
+            position = start;
+        }
+        return -1;
+    }
+
+    // "class.method" by method ID, from the lines of a method table (see MethodRegistry.writeTable)
+    private static String[] methodNames(List<String> table) {
+        if (table == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        for (String line : table.subList(1, table.size())) {
+            String[] cells = line.split(",");
+            if (cells.length < 3) {
+                continue;
+            }
+            int id = Integer.parseInt(cells[0]);
+            while (names.size() <= id) {
+                names.add(null);
+            }
+            names.set(id, cells[1] + "." + cells[2]);
+        }
+        return names.toArray(new String[0]);
+    }
+
+    // Keys by method ID, from the lines of a method table: hashes of class,method,descriptor, like the first columns
+    // of a mergeable profile's rows
+    private static long[] methodKeys(List<String> table) {
+        if (table == null) {
+            return null;
+        }
+        List<Long> keys = new ArrayList<>();
+        for (String line : table.subList(1, table.size())) {
+            String[] cells = line.split(",");
+            if (cells.length < 4) {
+                continue;
+            }
+            int id = Integer.parseInt(cells[0]);
+            while (keys.size() <= id) {
+                keys.add(0L);
+            }
+            byte[] bytes = (cells[1] + "," + cells[2] + "," + cells[3]).getBytes(StandardCharsets.UTF_8);
+            keys.set(id, methodKey(bytes, 0, bytes.length));
+        }
+        return keys.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    static Stats analyze(List<Path> paths) throws IOException {
+        Stats stats = new Stats();
+        for (Path path : paths) {
+            Layout layout = layout(path);
+            if (layout.dataEnd > layout.dataStart) {
+                stats.merge(ForkJoinPool.commonPool().invoke(new ChunkTask(layout, layout.dataStart, layout.dataEnd)));
+            }
+        }
+        return stats;
+    }
+
+    // The same output as print_stats in dacapo/analysis.py
+    private static void printSummary(PrintStream out, long[] counts, String prefix) {
+        long total = counts[NULL] + counts[NONNULL] + counts[THROW];
+        out.println(prefix + ": " + total);
+        out.println("\tNull values returned: " + counts[NULL] + " (" + percent(counts[NULL], total) + "%)");
+        out.println("\tNon-null values returned: " + counts[NONNULL] + " (" + percent(counts[NONNULL], total) + "%)");
+        out.println("\tExceptions thrown: " + counts[THROW] + " (" + percent(counts[THROW], total) + "%)");
+    }
+
+    // 100 * count / total as Python prints floats: like Double.toString, except that only values below 1e-4 are
+    // written in scientific notation, with a two-digit exponent
+    static String percent(long count, long total) {
+        double d = 100.0 * count / total;
+        String s = Double.toString(d);
+        if (d == 0 || Double.isNaN(d) || !s.contains("E")) {
+            return s;
+        }
+        if (d >= 1e-4) {
+            return new BigDecimal(s).toPlainString();
+        }
+        int e = s.indexOf('E');
+        int exponent = Integer.parseInt(s.substring(e + 1));
+        return s.substring(0, e).replaceFirst("\\.0$", "") + String.format("e%03d", exponent);
+    }
+
+    static void print(PrintStream out, Stats stats, int top, long minEvents) {
+        printSummary(out, stats.total, "Total events measured");
+        printSummary(out, stats.nullFields, "Events where the receiver has null fields");
+        printSummary(out, stats.nonNullFields, "Events where the receiver has no null fields");
+        printSummary(out, stats.nullParams, "Events where the receiver has null params");
+        printSummary(out, stats.nonNullParams, "Events where the receiver has no null params");
+        if (stats.methods.isEmpty()) {
+            return;
+        }
+
+        List<MethodStats> ranked = new ArrayList<>();
+        long stable = 0;
+        for (MethodStats m : stats.methods) {
+            if (m.total() < minEvents) {
+                continue;
+            }
+            ranked.add(m);
+            if (m.resultStability() == 1.0) {
+                stable++;
+            }
+        }
+        ranked.sort(Comparator.comparingDouble(MethodStats::resultStability)
+                .thenComparingDouble(MethodStats::outcomeStability)
+                .thenComparing(Comparator.comparingLong(MethodStats::total).reversed()));
+        out.println();
+        out.println("Methods with at least " + minEvents + " events: " + ranked.size() + ", of which " + stable +
+                " always had the same result");
+        out.println("Least stable methods (result stability: share of the most common result; outcome stability: " +
+                "share of the most common fields, params and result):");
+        out.println(String.format("%6s %12s %9s %9s %9s %8s %8s %8s  %s", "rank", "events", "result%", "outcome%",
+                "outcomes", "null%", "nonnull%", "throw%", "method"));
+        for (int i = 0; i < Math.min(top, ranked.size()); i++) {
+            MethodStats m = ranked.get(i);
+            long total = m.total();
+            out.println(String.format("%6d %12d %9.2f %9.2f %9d %8.2f %8.2f %8.2f  %s", i + 1, total,
+                    100 * m.resultStability(), 100 * m.outcomeStability(), m.outcomes.size,
+                    100.0 * m.results[NULL] / total, 100.0 * m.results[NONNULL] / total,
+                    100.0 * m.results[THROW] / total, m.name));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int top = 20;
+        long minEvents = 100;
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--top":
+                    top = Integer.parseInt(args[++i]);
+                    break;
+                case "--min-events":
+                    minEvents = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    paths.add(Paths.get(args[i]));
+            }
+        }
+        if (paths.isEmpty()) {
+            System.err.println("Usage: LogAnalyzer [--top n] [--min-events n] logFile...");
+            System.exit(1);
+        }
+        print(System.out, analyze(paths), top, minEvents);
+    }
+}
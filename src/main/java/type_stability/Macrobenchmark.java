@@ -0,0 +1,428 @@
+package type_stability;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Measures the agent's overhead on whole programs: for each workload, runs a fresh JVM per iteration without the agent
+// and with it in each mode, and compares them. Workloads are the DaCapo benchmarks, if the DaCapo jar is there, and
+// otherwise example_program, which is compiled first. Every run is a separate JVM, so the times include starting the
+// JVM and instrumenting classes, like a user would see them; warmup runs are discarded.
+//
+// Per run, the wall time is measured from outside, and the GCs, GC time and bytes allocated from inside, by Child,
+// which wraps the workload's main. The log size is the total size of the files the agent wrote. The table has the
+// median of each over the measured runs, and each mode's median wall time relative to the run without the agent.
+//
+// Usage: java -cp TypeStabilityAgent.jar type_stability.Macrobenchmark [--agent jar] [--dacapo jar]
+//   [--benchmarks b1,b2,...] [--example dir] [--modes m1,m2,...] [--mode name "agentArgs"]... [--warmup n]
+//   [--iterations n] [--jvm-args "args"] [--work dir] [--csv file]
+// --modes picks among the built-in modes below; --mode adds one, whose arguments are appended to -p and -l.
+public class Macrobenchmark {
+    // Name and agent arguments besides -p and -l of each built-in mode; off runs without the agent
+    private static final String[][] MODES = {
+            {"off", null},
+            {"raw", ""},
+            {"aggregate", "--aggregate"},
+            {"async", "--aggregate --async"},
+            {"binary", "--binary"},
+            {"sketch", "--sketch"},
+            {"sampled", "--aggregate --sample-every 16"},
+            {"budget", "--aggregate --overhead-budget 3"},
+            {"mergeable", "--aggregate --mergeable"},
+    };
+    private static final String BASELINE = "off";
+
+    // The DaCapo benchmarks dacapo/run_dacapo.sh knows, by the prefix of their classes
+    private static final Map<String, String> DACAPO_PREFIXES = new LinkedHashMap<>();
+
+    static {
+        DACAPO_PREFIXES.put("avrora", "avrora");
+        DACAPO_PREFIXES.put("fop", "org/apache/fop");
+        DACAPO_PREFIXES.put("h2", "org/h2");
+        DACAPO_PREFIXES.put("jython", "org/python");
+    }
+
+    static class Workload {
+        final String name;
+        final String prefix;
+        final String classPath;
+        final String mainClass;
+        final List<String> args;
+
+        Workload(String name, String prefix, String classPath, String mainClass, List<String> args) {
+            this.name = name;
+            this.prefix = prefix;
+            this.classPath = classPath;
+            this.mainClass = mainClass;
+            this.args = args;
+        }
+    }
+
+    static class Mode {
+        final String name;
+        final String agentArgs; // null without the agent
+
+        Mode(String name, String agentArgs) {
+            this.name = name;
+            this.agentArgs = agentArgs;
+        }
+    }
+
+    static class Run {
+        long wallNanos;
+        long gcCount;
+        long gcMillis;
+        long allocatedBytes;
+        long logBytes;
+    }
+
+    // Runs a workload's main in the forked JVM, and writes the JVM's GC count, GC time and allocated bytes to a file
+    // when it exits, however the workload ends it. Allocations are counted as the growth of the heap between GCs, as
+    // GC notifications report it, so that threads which have already finished count too.
+    public static class Child {
+        private static long allocated = 0;
+        private static long lastUsed;
+
+        private static long heapUsed(Map<String, MemoryUsage> usage, Set<String> heapPools) {
+            long used = 0;
+            for (Map.Entry<String, MemoryUsage> pool : usage.entrySet()) {
+                if (heapPools.contains(pool.getKey())) {
+                    used += pool.getValue().getUsed();
+                }
+            }
+            return used;
+        }
+
+        public static void main(String[] args) throws Throwable {
+            Path statsFile = Paths.get(args[0]);
+            Set<String> heapPools = new HashSet<>();
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    heapPools.add(pool.getName());
+                    used += pool.getUsage().getUsed();
+                }
+            }
+            lastUsed = used;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                    String type = notification.getType();
+                    if (!type.equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                        return;
+                    }
+                    GarbageCollectionNotificationInfo info =
+                            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    synchronized (Child.class) {
+                        allocated += Math.max(0, heapUsed(info.getGcInfo().getMemoryUsageBeforeGc(), heapPools) -
+                                lastUsed);
+                        lastUsed = heapUsed(info.getGcInfo().getMemoryUsageAfterGc(), heapPools);
+                    }
+                }, null, null);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> writeStats(statsFile)));
+
+            Method main = Class.forName(args[1]).getMethod("main", String[].class);
+            try {
+                main.invoke(null, (Object) Arrays.copyOfRange(args, 2, args.length));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private static void writeStats(Path statsFile) {
+            long gcCount = 0;
+            long gcMillis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += Math.max(0, gc.getCollectionCount());
+                gcMillis += Math.max(0, gc.getCollectionTime());
+            }
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    used += pool.getUsage().getUsed();
+                }
+            }
+            long total;
+            synchronized (Child.class) {
+                total = allocated + Math.max(0, used - lastUsed);
+            }
+            try {
+                Files.write(statsFile,
+                        (gcCount + " " + gcMillis + " " + total + "\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Could not write " + statsFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private final Path agentJar;
+    private final Path workDirectory;
+    private final List<String> jvmArgs;
+    private final int warmup;
+    private final int iterations;
+
+    Macrobenchmark(Path agentJar, Path workDirectory, List<String> jvmArgs, int warmup, int iterations) {
+        this.agentJar = agentJar;
+        this.workDirectory = workDirectory;
+        this.jvmArgs = jvmArgs;
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    // One JVM running workload in mode; returns null if it failed
+    Run run(Workload workload, Mode mode, int iteration) throws IOException, InterruptedException {
+        String name = workload.name + "-" + mode.name + "-" + iteration;
+        Path stats = workDirectory.resolve(name + ".stats");
+        Path output = workDirectory.resolve(name + ".out");
+        Path logDirectory = Files.createDirectories(workDirectory.resolve(name + ".logs"));
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        if (mode.agentArgs != null) {
+            command.add("-javaagent:" + agentJar + "=-p " + workload.prefix + " -l " + logDirectory.resolve("log") +
+                    (mode.agentArgs.isEmpty() ? "" : " " + mode.agentArgs));
+        }
+        command.add("-cp");
+        command.add(agentJar + File.pathSeparator + workload.classPath);
+        command.add(Child.class.getName());
+        command.add(stats.toString());
+        command.add(workload.mainClass);
+        command.addAll(workload.args);
+
+        Files.deleteIfExists(stats);
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(output.toFile())
+                .start();
+        int exitCode = process.waitFor();
+        long wallNanos = System.nanoTime() - start;
+        if (exitCode != 0 || !Files.exists(stats)) {
+            System.err.println(name + " failed with exit code " + exitCode + "; see " + output + ".");
+            return null;
+        }
+        Run run = new Run();
+        run.wallNanos = wallNanos;
+        String[] cells = new String(Files.readAllBytes(stats), StandardCharsets.UTF_8).trim().split(" ");
+        run.gcCount = Long.parseLong(cells[0]);
+        run.gcMillis = Long.parseLong(cells[1]);
+        run.allocatedBytes = Long.parseLong(cells[2]);
+        try (Stream<Path> logs = Files.list(logDirectory)) {
+            for (Path log : logs.collect(Collectors.toList())) {
+                run.logBytes += Files.size(log);
+                Files.delete(log);
+            }
+        }
+        Files.delete(logDirectory);
+        return run;
+    }
+
+    // The measured runs of workload in mode, after the warmup runs
+    List<Run> measure(Workload workload, Mode mode) throws IOException, InterruptedException {
+        for (int i = 0; i < warmup; i++) {
+            run(workload, mode, -1 - i);
+        }
+        List<Run> runs = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) {
+            Run run = run(workload, mode, i);
+            if (run != null) {
+                runs.add(run);
+            }
+            System.err.print('.');
+        }
+        return runs;
+    }
+
+    private static long median(List<Run> runs, java.util.function.ToLongFunction<Run> metric) {
+        long[] values = runs.stream().mapToLong(metric).sorted().toArray();
+        int n = values.length;
+        return n % 2 == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+    }
+
+    static void printTable(PrintStream out, Writer csv, Map<String, Map<String, List<Run>>> results)
+            throws IOException {
+        out.println(String.format("%-10s %-10s %10s %9s %6s %7s %10s %10s %5s", "workload", "mode", "wall ms",
+                "slowdown", "GCs", "GC ms", "alloc MB", "log KB", "runs"));
+        if (csv != null) {
+            csv.append("workload,mode,wall_ms,slowdown,gcs,gc_ms,allocated_bytes,log_bytes,runs\n");
+        }
+        for (Map.Entry<String, Map<String, List<Run>>> workload : results.entrySet()) {
+            List<Run> baseline = workload.getValue().get(BASELINE);
+            double baselineNanos = baseline == null || baseline.isEmpty() ? Double.NaN
+                    : median(baseline, r -> r.wallNanos);
+            for (Map.Entry<String, List<Run>> mode : workload.getValue().entrySet()) {
+                List<Run> runs = mode.getValue();
+                if (runs.isEmpty()) {
+                    out.println(String.format("%-10s %-10s %10s", workload.getKey(), mode.getKey(), "failed"));
+                    continue;
+                }
+                long wall = median(runs, r -> r.wallNanos);
+                double slowdown = wall / baselineNanos;
+                long gcs = median(runs, r -> r.gcCount);
+                long gcMillis = median(runs, r -> r.gcMillis);
+                long allocated = median(runs, r -> r.allocatedBytes);
+                long logBytes = median(runs, r -> r.logBytes);
+                out.println(String.format("%-10s %-10s %10.1f %8.2fx %6d %7d %10.1f %10.1f %5d", workload.getKey(),
+                        mode.getKey(), wall / 1e6, slowdown, gcs, gcMillis, allocated / 1048576.0, logBytes / 1024.0,
+                        runs.size()));
+                if (csv != null) {
+                    csv.append(String.format("%s,%s,%.3f,%.4f,%d,%d,%d,%d,%d\n", workload.getKey(), mode.getKey(),
+                            wall / 1e6, slowdown, gcs, gcMillis, allocated, logBytes, runs.size()));
+                }
+            }
+        }
+    }
+
+    // example_program, compiled into the work directory, for Java 11 since the agent's ASM can't read newer class files
+    static Workload exampleWorkload(Path sourceDirectory, Path workDirectory) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Compiling " + sourceDirectory + " needs a JDK.");
+        }
+        List<String> arguments = new ArrayList<>(List.of("--release", "11", "-d",
+                workDirectory.resolve("example").toString()));
+        try (Stream<Path> files = Files.walk(sourceDirectory)) {
+            files.filter(p -> p.toString().endsWith(".java")).forEach(p -> arguments.add(p.toString()));
+        }
+        if (compiler.run(null, null, null, arguments.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("Could not compile " + sourceDirectory + ".");
+        }
+        return new Workload("example", "example", workDirectory.resolve("example").toString(), "example.Main",
+                List.of());
+    }
+
+    static List<Workload> dacapoWorkloads(Path jar, List<String> benchmarks) throws IOException {
+        String mainClass;
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            mainClass = jarFile.getManifest().getMainAttributes().getValue("Main-Class");
+        }
+        List<Workload> workloads = new ArrayList<>();
+        for (String benchmark : benchmarks) {
+            String prefix = DACAPO_PREFIXES.get(benchmark);
+            if (prefix == null) {
+                throw new IllegalArgumentException("Unknown DaCapo benchmark " + benchmark + "; known are " +
+                        DACAPO_PREFIXES.keySet() + ".");
+            }
+            workloads.add(new Workload(benchmark, prefix, jar.toString(), mainClass, List.of(benchmark)));
+        }
+        return workloads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path agentJar = Paths.get(Macrobenchmark.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .toAbsolutePath();
+        Path dacapoJar = Paths.get("dacapo", "dacapo-9.12-MR1-bach.jar");
+        List<String> benchmarks = new ArrayList<>(DACAPO_PREFIXES.keySet());
+        Path exampleDirectory = Paths.get("example_program");
+        List<String> modeNames = null;
+        List<Mode> extraModes = new ArrayList<>();
+        int warmup = 1;
+        int iterations = 5;
+        List<String> jvmArgs = List.of();
+        Path workDirectory = null;
+        Path csvFile = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--agent":
+                    agentJar = Paths.get(args[++i]).toAbsolutePath();
+                    break;
+                case "--dacapo":
+                    dacapoJar = Paths.get(args[++i]);
+                    break;
+                case "--benchmarks":
+                    benchmarks = Arrays.asList(args[++i].split(","));
+                    break;
+                case "--example":
+                    exampleDirectory = Paths.get(args[++i]);
+                    break;
+                case "--modes":
+                    modeNames = Arrays.asList(args[++i].split(","));
+                    break;
+                case "--mode":
+                    extraModes.add(new Mode(args[i + 1], args[i + 2]));
+                    i += 2;
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--jvm-args":
+                    jvmArgs = Arrays.asList(args[++i].trim().split(" +"));
+                    break;
+                case "--work":
+                    workDirectory = Paths.get(args[++i]);
+                    break;
+                case "--csv":
+                    csvFile = Paths.get(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: Macrobenchmark [--agent jar] [--dacapo jar] [--benchmarks b1,b2,...] " +
+                            "[--example dir] [--modes m1,m2,...] [--mode name \"agentArgs\"]... [--warmup n] " +
+                            "[--iterations n] [--jvm-args \"args\"] [--work dir] [--csv file]");
+                    System.exit(1);
+            }
+        }
+        if (iterations < 1 || warmup < 0) {
+            throw new IllegalArgumentException("--iterations must be positive, and --warmup not negative.");
+        }
+
+        List<Mode> modes = new ArrayList<>();
+        for (String[] mode : MODES) {
+            if (modeNames == null || modeNames.contains(mode[0]) || mode[0].equals(BASELINE)) {
+                modes.add(new Mode(mode[0], mode[1]));
+            }
+        }
+        modes.addAll(extraModes);
+        workDirectory = workDirectory != null ? Files.createDirectories(workDirectory)
+                : Files.createTempDirectory("macrobenchmark");
+        List<Workload> workloads = Files.isRegularFile(dacapoJar)
+                ? dacapoWorkloads(dacapoJar, benchmarks)
+                : List.of(exampleWorkload(exampleDirectory, workDirectory));
+
+        Macrobenchmark benchmark = new Macrobenchmark(agentJar, workDirectory, jvmArgs, warmup, iterations);
+        Map<String, Map<String, List<Run>>> results = new LinkedHashMap<>();
+        for (Workload workload : workloads) {
+            Map<String, List<Run>> byMode = new LinkedHashMap<>();
+            for (Mode mode : modes) {
+                System.err.print(workload.name + " " + mode.name + " ");
+                byMode.put(mode.name, benchmark.measure(workload, mode));
+                System.err.println();
+            }
+            results.put(workload.name, byMode);
+        }
+        try (Writer csv = csvFile != null ? Files.newBufferedWriter(csvFile) : null) {
+            printTable(System.out, csv, results);
+        }
+        System.err.println("Outputs of the runs are in " + workDirectory + ".");
+    }
+}
@@ -0,0 +1,196 @@
+package type_stability;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Decides which methods of an instrumented class are instrumented, from glob patterns (--method, --exclude-method),
+// in which * matches any run of characters and ? any one character. A pattern without a '.' matches method names, e.g.
+// get*; one with a '.' matches the internal class name and the method name, e.g. com/example/*Parser.parse*. A method is
+// instrumented if it matches an included pattern (or there are none) and no excluded one.
+//
+// Each list of patterns is compiled into one automaton, so checking a method takes one walk down its name, however many
+// patterns there are.
+class MethodFilter {
+    static final MethodFilter ALL = new MethodFilter();
+
+    private final List<String> included = new ArrayList<>();
+    private final List<String> excluded = new ArrayList<>();
+    private Automaton includeAutomaton = null;
+    private Automaton excludeAutomaton = null;
+
+    void include(String glob) {
+        included.add(glob);
+        includeAutomaton = new Automaton(included);
+    }
+
+    void exclude(String glob) {
+        excluded.add(glob);
+        excludeAutomaton = new Automaton(excluded);
+    }
+
+    boolean isEnabled() {
+        return includeAutomaton != null || excludeAutomaton != null;
+    }
+
+    // Everything which affects the result of matches; see Config.transformFingerprint
+    String fingerprint() {
+        return included + "/" + excluded;
+    }
+
+    boolean matches(String className, String methodName) {
+        if (!isEnabled()) {
+            return true;
+        }
+        String qualifiedName = className + "." + methodName;
+        if (includeAutomaton != null && !includeAutomaton.matches(qualifiedName)) {
+            return false;
+        }
+        return excludeAutomaton == null || !excludeAutomaton.matches(qualifiedName);
+    }
+
+    // A nondeterministic automaton with one position per token of each pattern, made deterministic lazily: each set of
+    // positions an input reaches becomes a state, whose transitions are computed the first time they're taken. Inputs
+    // are mapped to classes first, one per character which appears in the patterns and one for all others, so that
+    // states have a small table of transitions.
+    private static class Automaton {
+        private static final byte LITERAL = 0;
+        private static final byte ANY = 1; // ?
+        private static final byte STAR = 2; // *
+        private static final byte NAME_STAR = 3; // any run without a '.', before the method name of a name-only pattern
+        private static final byte END = 4;
+
+        private static final int START = 0;
+        private static final int DEAD = 1;
+
+        // The tokens of every pattern, each followed by an END
+        private final byte[] kinds;
+        private final char[] chars;
+        // Input class i + 1 is classChars[i]; class 0 is every other character
+        private final char[] classChars;
+        private final int dotClass;
+
+        // Guarded by this
+        private final List<BitSet> states = new ArrayList<>();
+        private final Map<BitSet, Integer> stateIds = new HashMap<>();
+        private final List<int[]> transitions = new ArrayList<>(); // by input class; -1 until computed
+        private final BitSet accepting = new BitSet();
+
+        Automaton(List<String> globs) {
+            int length = 0;
+            for (String glob : globs) {
+                length += glob.length() + 3;
+            }
+            kinds = new byte[length];
+            chars = new char[length];
+            StringBuilder literals = new StringBuilder(".");
+            BitSet start = new BitSet();
+            int p = 0;
+            for (String glob : globs) {
+                start.set(p);
+                if (glob.indexOf('.') < 0) {
+                    kinds[p++] = NAME_STAR;
+                    kinds[p] = LITERAL;
+                    chars[p++] = '.';
+                }
+                for (int i = 0; i < glob.length(); i++) {
+                    char c = glob.charAt(i);
+                    kinds[p] = c == '*' ? STAR : c == '?' ? ANY : LITERAL;
+                    chars[p++] = c;
+                    if (c != '*' && c != '?') {
+                        literals.append(c);
+                    }
+                }
+                kinds[p++] = END;
+            }
+            char[] sorted = literals.toString().toCharArray();
+            Arrays.sort(sorted);
+            int numClasses = 0;
+            for (char c : sorted) {
+                if (numClasses == 0 || sorted[numClasses - 1] != c) {
+                    sorted[numClasses++] = c;
+                }
+            }
+            classChars = Arrays.copyOf(sorted, numClasses);
+            dotClass = inputClass('.');
+            state(close(start));
+            state(new BitSet());
+        }
+
+        private int inputClass(char c) {
+            int i = Arrays.binarySearch(classChars, c);
+            return i >= 0 ? i + 1 : 0;
+        }
+
+        // Adds the positions after each star, which may match nothing
+        private BitSet close(BitSet positions) {
+            for (int p = positions.nextSetBit(0); p >= 0; p = positions.nextSetBit(p + 1)) {
+                if (kinds[p] == STAR || kinds[p] == NAME_STAR) {
+                    positions.set(p + 1);
+                }
+            }
+            return positions;
+        }
+
+        private int state(BitSet positions) {
+            Integer id = stateIds.get(positions);
+            if (id != null) {
+                return id;
+            }
+            id = states.size();
+            states.add(positions);
+            stateIds.put(positions, id);
+            int[] t = new int[classChars.length + 1];
+            Arrays.fill(t, -1);
+            transitions.add(t);
+            for (int p = positions.nextSetBit(0); p >= 0; p = positions.nextSetBit(p + 1)) {
+                if (kinds[p] == END) {
+                    accepting.set(id);
+                }
+            }
+            return id;
+        }
+
+        private int step(int state, int inputClass) {
+            BitSet next = new BitSet();
+            BitSet positions = states.get(state);
+            for (int p = positions.nextSetBit(0); p >= 0; p = positions.nextSetBit(p + 1)) {
+                switch (kinds[p]) {
+                    case LITERAL:
+                        if (inputClass(chars[p]) == inputClass) {
+                            next.set(p + 1);
+                        }
+                        break;
+                    case ANY:
+                        next.set(p + 1);
+                        break;
+                    case STAR:
+                        next.set(p);
+                        break;
+                    case NAME_STAR:
+                        if (inputClass != dotClass) {
+                            next.set(p);
+                        }
+                        break;
+                }
+            }
+            return state(close(next));
+        }
+
+        synchronized boolean matches(String name) {
+            int state = START;
+            for (int i = 0; i < name.length() && state != DEAD; i++) {
+                int inputClass = inputClass(name.charAt(i));
+                int[] t = transitions.get(state);
+                if (t[inputClass] < 0) {
+                    t[inputClass] = step(state, inputClass);
+                }
+                state = t[inputClass];
+            }
+            return accepting.get(state);
+        }
+    }
+}
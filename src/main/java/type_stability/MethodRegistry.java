@@ -0,0 +1,158 @@
+package type_stability;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Assigns each instrumented method a dense int ID at transform time. Probes only pass this ID to the logger, which looks
+// up everything else about the method here.
+//
+// An ID stands for a method with particular bitmaps: its number of parameters and its fields, which differ when the
+// class has changed or another field selection (--read-fields, --include-fields, --exclude-fields) instrumented it. Such
+// an instrumentation gets a new ID, since the persistent table is shared by every run and config, and the logger must
+// decode each event with the bitmap widths of the probe which logged it.
+public class MethodRegistry {
+    public static class MethodInfo {
+        public final int id;
+        public final String className;
+        public final String methodName;
+        public final String descriptor;
+        public final int numFields;
+        public final int numParameters;
+        // The fields at each position of the field bitmap, or null if unknown (e.g. in older method tables)
+        public final String[] fieldNames;
+
+        MethodInfo(int id, String className, String methodName, String descriptor, int numFields, int numParameters,
+                   String[] fieldNames) {
+            this.id = id;
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.numFields = numFields;
+            this.numParameters = numParameters;
+            this.fieldNames = fieldNames;
+        }
+    }
+
+    // Guarded by MethodRegistry.class
+    private static final HashMap<String, MethodInfo> byKey = new HashMap<>();
+    private static int count = 0;
+    // Read without locking. Every write to an element is followed by a write to the field itself, so that a reader
+    // which sees an ID also sees its MethodInfo.
+    private static volatile MethodInfo[] byId = new MethodInfo[1024];
+
+    // Tables written before fields existed lack the field names, and so never match a method registered with them
+    private static String key(String className, String methodName, String descriptor, int numFields,
+                              int numParameters, String[] fieldNames) {
+        return className + "::" + methodName + descriptor + "#" + numFields + "," + numParameters + "," +
+                (fieldNames != null ? String.join(";", fieldNames) : "?");
+    }
+
+    // When set, IDs are assigned through this table, so that they are the same in every run. Guarded by
+    // MethodRegistry.class.
+    private static PersistentMethodTable persistentTable = null;
+
+    static synchronized void persist(PersistentMethodTable table) throws IOException {
+        persistentTable = table;
+        table.load();
+    }
+
+    // Registering the same method with the same bitmaps twice (e.g. when its class is retransformed) returns the same
+    // ID. fieldNames may be null if only the number of fields is known.
+    public static synchronized int register(String className, String methodName, String descriptor,
+                                            String[] fieldNames, int numParameters) {
+        return register(className, methodName, descriptor, fieldNames.length, numParameters, fieldNames);
+    }
+
+    public static synchronized int register(String className, String methodName, String descriptor,
+                                            int numFields, int numParameters) {
+        return register(className, methodName, descriptor, numFields, numParameters, null);
+    }
+
+    private static int register(String className, String methodName, String descriptor, int numFields,
+                                int numParameters, String[] fieldNames) {
+        int id = find(className, methodName, descriptor, numFields, numParameters, fieldNames);
+        if (id >= 0) {
+            return id;
+        }
+        if (persistentTable != null) {
+            try {
+                return persistentTable.register(className, methodName, descriptor, numFields, numParameters,
+                        fieldNames);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not update the persistent method table.", e);
+            }
+        }
+        MethodInfo info = new MethodInfo(count, className, methodName, descriptor, numFields, numParameters,
+                fieldNames);
+        add(info);
+        return info.id;
+    }
+
+    // The ID of a registered method with these bitmaps, or -1
+    static synchronized int find(String className, String methodName, String descriptor, int numFields,
+                                 int numParameters, String[] fieldNames) {
+        MethodInfo info = byKey.get(key(className, methodName, descriptor, numFields, numParameters, fieldNames));
+        return info != null ? info.id : -1;
+    }
+
+    // Add a method whose ID has already been assigned; IDs must be added in order
+    static synchronized void add(MethodInfo info) {
+        if (info.id != count) {
+            throw new IllegalStateException("Method " + info.id + " registered out of order, expected " + count + ".");
+        }
+        count++;
+        byKey.put(key(info.className, info.methodName, info.descriptor, info.numFields, info.numParameters,
+                info.fieldNames), info);
+        MethodInfo[] methods = byId;
+        if (info.id >= methods.length) {
+            methods = Arrays.copyOf(methods, methods.length * 2);
+        }
+        methods[info.id] = info;
+        byId = methods;
+    }
+
+    public static MethodInfo get(int id) {
+        return byId[id];
+    }
+
+    // The number of IDs assigned so far; IDs are in [0, size())
+    public static int size() {
+        synchronized (MethodRegistry.class) {
+            return count;
+        }
+    }
+
+    // The fields column lists the fields at each position of the method's field bitmap, separated by ';' (which can't
+    // occur in field names).
+    static String fieldsCell(MethodInfo info) {
+        return info.fieldNames != null ? String.join(";", info.fieldNames) : "";
+    }
+
+    public static void writeTable(Writer writer) throws IOException {
+        boolean converging = ConvergenceTracker.isEnabled();
+        writer.append(converging
+                ? "id,class,method,descriptor,converged,fields\n"
+                : "id,class,method,descriptor,fields\n");
+        int n = size();
+        for (int id = 0; id < n; id++) {
+            MethodInfo info = get(id);
+            writer.append(Integer.toString(id));
+            writer.append(',');
+            writer.append(info.className);
+            writer.append(',');
+            writer.append(info.methodName);
+            writer.append(',');
+            writer.append(info.descriptor);
+            if (converging) {
+                writer.append(',');
+                writer.append(ConvergenceTracker.isConverged(id) ? '1' : '0');
+            }
+            writer.append(',');
+            writer.append(fieldsCell(info));
+            writer.append('\n');
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package type_stability;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+// With --specialize profile, the agent doesn't instrument anything; instead it uses a profile from an earlier run (see
+// NullnessProfile) to specialize methods whose reftype parameters were never null. Such a method m gets a private copy
+// m$nonnull with the null checks of those parameters folded away, and m itself starts with a guard:
+//   if (p != null && q != null) return m$nonnull(p, q); <the original body>
+// so a call which breaks the profile just falls back to the original code ("deoptimizes"), which is counted and
+// reported at shutdown.
+//
+// The folded checks are tests of a parameter which the method never reassigns: `aload p; ifnull` (dropped),
+// `aload p; ifnonnull L` (becomes a goto) and Objects.requireNonNull(p) (dropped), with nothing but line numbers and
+// frames in between: a label which is jumped to there means other paths reach the test with something else on the
+// stack, so it stays. Methods with none are left alone.
+// Whether a method returned null can't be used the same way: callers have no cheaper guard than the null check itself.
+public class MethodSpecializer {
+    private final static Logger LOGGER = Logger.getLogger(MethodSpecializer.class.getName());
+
+    // Profiles with fewer events than this for a method aren't trusted to say anything about it
+    static final long MIN_EVENTS = 100;
+    static final String SUFFIX = "$nonnull";
+
+    private static final String OBJECTS = "java/util/Objects";
+
+    private final NullnessProfile profile;
+    private final MethodFilter methodFilter;
+    // How many methods transformClass has specialized
+    private int numTransformed = 0;
+
+    // Guarded by MethodSpecializer.class
+    private static final List<String> specialized = new ArrayList<>();
+    private static volatile AtomicLongArray deoptimizations = new AtomicLongArray(1024);
+
+    MethodSpecializer(NullnessProfile profile, MethodFilter methodFilter) {
+        this.profile = profile;
+        this.methodFilter = methodFilter;
+    }
+
+    // Called by the guard of specialized method `id` when the profile doesn't hold
+    public static void deoptimized(int id) {
+        deoptimizations.incrementAndGet(id);
+    }
+
+    private static synchronized int register(String name) {
+        int id = specialized.size();
+        specialized.add(name);
+        if (id >= deoptimizations.length()) {
+            AtomicLongArray grown = new AtomicLongArray(deoptimizations.length() * 2);
+            for (int i = 0; i < deoptimizations.length(); i++) {
+                grown.set(i, deoptimizations.get(i));
+            }
+            deoptimizations = grown;
+        }
+        return id;
+    }
+
+    // Print how often each specialized method deoptimized at shutdown
+    static void reportAtShutdown() {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (MethodSpecializer.class) {
+                long total = 0;
+                StringBuilder details = new StringBuilder();
+                for (int id = 0; id < specialized.size(); id++) {
+                    long n = deoptimizations.get(id);
+                    total += n;
+                    if (n > 0) {
+                        details.append("\n  ").append(specialized.get(id)).append(": ").append(n);
+                    }
+                }
+                NullnessLogger.report("Specialized " + specialized.size() + " methods, whose guards failed " + total +
+                        " times" + (total > 0 ? ":" + details : "."));
+            }
+        }));
+    }
+
+    public ClassNode transformClass(ClassNode cn) {
+        if ((cn.access & Opcodes.ACC_INTERFACE) != 0) {
+            return cn;
+        }
+        List<MethodNode> added = new ArrayList<>();
+        for (MethodNode mn : cn.methods) {
+            MethodNode fast = specialize(cn, mn);
+            if (fast != null) {
+                added.add(fast);
+            }
+        }
+        cn.methods.addAll(added);
+        return cn;
+    }
+
+    public int getNumTransformed() {
+        return numTransformed;
+    }
+
+    // Returns the fast copy of mn, if mn is worth specializing; mn then starts with the guard
+    MethodNode specialize(ClassNode cn, MethodNode mn) {
+        if (mn.name.startsWith("<") || (mn.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0 ||
+                mn.name.endsWith(SUFFIX) || !methodFilter.matches(cn.name, mn.name)) {
+            return null;
+        }
+        NullnessProfile.MethodProfile method = profile.get(cn.name, mn.name, mn.desc);
+        if (method == null || method.events < MIN_EVENTS) {
+            return null;
+        }
+        boolean isStatic = (mn.access & Opcodes.ACC_STATIC) != 0;
+        Type methodType = Type.getMethodType(mn.desc);
+
+        // The locals of the parameters which were never null
+        Set<Integer> nonNull = new HashSet<>();
+        int localVarIdx = isStatic ? 0 : 1;
+        int position = 0;
+        for (Type t : methodType.getArgumentTypes()) {
+            if (t.getSort() == Type.ARRAY || t.getSort() == Type.OBJECT) {
+                if (position < method.parameterNeverNull.length && method.parameterNeverNull[position]) {
+                    nonNull.add(localVarIdx);
+                }
+                position++;
+            }
+            localVarIdx += t.getSize();
+        }
+        for (AbstractInsnNode insn : mn.instructions) {
+            if (insn.getOpcode() == Opcodes.ASTORE) {
+                nonNull.remove(((VarInsnNode) insn).var);
+            }
+        }
+        if (nonNull.isEmpty()) {
+            return null;
+        }
+        for (MethodNode other : cn.methods) {
+            if (other.name.equals(mn.name + SUFFIX) && other.desc.equals(mn.desc)) {
+                return null;
+            }
+        }
+
+        int access = (mn.access & (Opcodes.ACC_STATIC | Opcodes.ACC_STRICT)) | Opcodes.ACC_PRIVATE |
+                Opcodes.ACC_SYNTHETIC;
+        MethodNode fast = new MethodNode(Opcodes.ASM9, access, mn.name + SUFFIX, mn.desc, mn.signature,
+                mn.exceptions.toArray(new String[0]));
+        mn.instructions.accept(fast);
+        for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+            tcb.accept(fast);
+        }
+        fast.maxLocals = mn.maxLocals;
+        fast.maxStack = mn.maxStack;
+        int folded = foldNullChecks(fast, nonNull);
+        if (folded == 0) {
+            return null;
+        }
+
+        String name = cn.name.replace('/', '.') + "." + mn.name + mn.desc;
+        int id = register(name);
+        mn.instructions.insert(generateGuard(cn, mn, fast, nonNull, id));
+        numTransformed++;
+        LOGGER.info("Specialized " + name + ", folding " + folded + " null checks of " + nonNull.size() +
+                " parameters.");
+        return fast;
+    }
+
+    // Remove the null checks of the never-null parameters from m; returns how many there were
+    int foldNullChecks(MethodNode m, Set<Integer> nonNull) {
+        Set<LabelNode> targets = referencedLabels(m);
+        int folded = 0;
+        for (AbstractInsnNode insn = m.instructions.getFirst(); insn != null; ) {
+            AbstractInsnNode next = insn.getNext();
+            if (insn.getOpcode() == Opcodes.ALOAD && nonNull.contains(((VarInsnNode) insn).var)) {
+                AbstractInsnNode use = insn.getNext();
+                while (use != null && (use instanceof LineNumberNode || use instanceof FrameNode ||
+                        (use instanceof LabelNode && !targets.contains(use)))) {
+                    use = use.getNext();
+                }
+                if (use == null) {
+                    break;
+                }
+                if (use.getOpcode() == Opcodes.IFNULL) {
+                    next = use.getNext();
+                    m.instructions.remove(insn);
+                    m.instructions.remove(use);
+                    folded++;
+                } else if (use.getOpcode() == Opcodes.IFNONNULL) {
+                    next = use.getNext();
+                    m.instructions.set(use, new JumpInsnNode(Opcodes.GOTO, ((JumpInsnNode) use).label));
+                    m.instructions.remove(insn);
+                    folded++;
+                } else if (use.getOpcode() == Opcodes.INVOKESTATIC && isRequireNonNull((MethodInsnNode) use)) {
+                    // requireNonNull(p) returns p, so leave the load
+                    next = use.getNext();
+                    m.instructions.remove(use);
+                    folded++;
+                }
+            }
+            insn = next;
+        }
+        return folded;
+    }
+
+    // Labels which are jumped to or bound a try block
+    private static Set<LabelNode> referencedLabels(MethodNode m) {
+        Set<LabelNode> labels = new HashSet<>();
+        for (AbstractInsnNode insn : m.instructions) {
+            if (insn instanceof JumpInsnNode) {
+                labels.add(((JumpInsnNode) insn).label);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                labels.add(((TableSwitchInsnNode) insn).dflt);
+                labels.addAll(((TableSwitchInsnNode) insn).labels);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                labels.add(((LookupSwitchInsnNode) insn).dflt);
+                labels.addAll(((LookupSwitchInsnNode) insn).labels);
+            }
+        }
+        for (TryCatchBlockNode tcb : m.tryCatchBlocks) {
+            labels.add(tcb.start);
+            labels.add(tcb.end);
+            labels.add(tcb.handler);
+        }
+        return labels;
+    }
+
+    private static boolean isRequireNonNull(MethodInsnNode call) {
+        return call.owner.equals(OBJECTS) && call.name.equals("requireNonNull") &&
+                call.desc.equals("(Ljava/lang/Object;)Ljava/lang/Object;");
+    }
+
+    // if (p != null && ...) return fast(args...); MethodSpecializer.deoptimized(id);
+    InsnList generateGuard(ClassNode cn, MethodNode mn, MethodNode fast, Set<Integer> nonNull, int id) {
+        InsnList guard = new InsnList();
+        LabelNode slow = new LabelNode();
+        for (int var : nonNull) {
+            guard.add(new VarInsnNode(Opcodes.ALOAD, var));
+            guard.add(new JumpInsnNode(Opcodes.IFNULL, slow));
+        }
+        boolean isStatic = (mn.access & Opcodes.ACC_STATIC) != 0;
+        int localVarIdx = 0;
+        if (!isStatic) {
+            guard.add(new VarInsnNode(Opcodes.ALOAD, 0));
+            localVarIdx++;
+        }
+        Type methodType = Type.getMethodType(mn.desc);
+        for (Type t : methodType.getArgumentTypes()) {
+            guard.add(new VarInsnNode(t.getOpcode(Opcodes.ILOAD), localVarIdx));
+            localVarIdx += t.getSize();
+        }
+        guard.add(new MethodInsnNode(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKESPECIAL, cn.name, fast.name,
+                fast.desc, false));
+        guard.add(new InsnNode(methodType.getReturnType().getOpcode(Opcodes.IRETURN)));
+        guard.add(slow);
+        guard.add(new LdcInsnNode(id));
+        guard.add(new MethodInsnNode(
+                Opcodes.INVOKESTATIC,
+                Type.getInternalName(MethodSpecializer.class),
+                "deoptimized",
+                Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE),
+                false
+        ));
+        return guard;
+    }
+}
@@ -4,52 +4,230 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
-import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class MethodStabilityTransformer<T extends NullnessLogger> {
     private final static Logger LOGGER = Logger.getLogger(MethodStabilityTransformer.class.getName());
 
+    // Bitmaps are split into 64-value words: the first word holds the first 64 values, and so on. A method keeps its
+    // words in up to MAX_LONG_LOCALS long locals, and beyond that in a long[] which its prologue allocates. Its field and
+    // parameter bitmaps always get the same number of locals, so that there is one probe signature per representation.
+    static final int MAX_LONG_LOCALS = 2;
+
     private final Class<T> loggerClass;
+    // Whether probes ask NullnessSampler if each call should be recorded
+    private final boolean sampled;
+    // Which fields of the receiver probes record
+    private final FieldSelection fieldSelection;
+    // Which methods may be instrumented; see isSuitableMethod
+    private final MethodFilter methodFilter;
+    // How many methods transformClass has instrumented
+    private int numTransformed = 0;
+    // How many call sites transformClass has instrumented (see CallSites)
+    private int numCallSites = 0;
+    // The rethrows of instrumentCallSites's handlers, which pass on a callee's exception rather than throw one
+    private final Set<AbstractInsnNode> callSiteRethrows = new HashSet<>();
 
     public MethodStabilityTransformer(Class<T> loggerClass) {
+        this(loggerClass, false);
+    }
+
+    public MethodStabilityTransformer(Class<T> loggerClass, boolean sampled) {
+        this(loggerClass, sampled, FieldSelection.ALL, MethodFilter.ALL);
+    }
+
+    MethodStabilityTransformer(Class<T> loggerClass, boolean sampled, FieldSelection fieldSelection,
+                               MethodFilter methodFilter) {
         this.loggerClass = loggerClass;
+        this.sampled = sampled;
+        this.fieldSelection = fieldSelection;
+        this.methodFilter = methodFilter;
     }
 
     public ClassNode transformClass(ClassNode cn) {
         LOGGER.info("Transforming " + cn.name);
+        if (CallSites.isEnabled()) {
+            // Before the probes are added, so that their own calls aren't mistaken for call sites
+            for (MethodNode mn : cn.methods) {
+                instrumentCallSites(cn, mn);
+            }
+        }
         cn.methods = cn.methods.stream()
                 .map(mn -> transformMethod(cn, mn))
                 .collect(Collectors.toList());
         return cn;
     }
 
+    public int getNumTransformed() {
+        return numTransformed;
+    }
+
+    public int getNumCallSites() {
+        return numCallSites;
+    }
+
+    // Precede each invocation which might reach an instrumented method with
+    //   CallSites.enter(callSiteId);
+    // and clear the slot again once it returns or throws, so that if the callee isn't instrumented its call site can't
+    // be attributed to a later call. Only methods with a reference return type and a reference parameter are
+    // instrumented (see isSuitableMethod), so other invocations are left alone.
+    void instrumentCallSites(ClassNode cn, MethodNode mn) {
+        // Collect the invocations first, since the index counts only the original instructions
+        List<MethodInsnNode> calls = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        List<Integer> lines = new ArrayList<>();
+        int index = 0;
+        int line = -1;
+        for (AbstractInsnNode insn : mn.instructions) {
+            if (insn instanceof LineNumberNode) {
+                line = ((LineNumberNode) insn).line;
+            }
+            if (insn.getOpcode() < 0) {
+                continue;
+            }
+            if (insn instanceof MethodInsnNode) {
+                MethodInsnNode call = (MethodInsnNode) insn;
+                Type callType = Type.getMethodType(call.desc);
+                if (!call.name.equals("<init>") && isNullable(callType.getReturnType()) &&
+                        Arrays.stream(callType.getArgumentTypes()).anyMatch(this::isNullable)) {
+                    calls.add(call);
+                    indices.add(index);
+                    lines.add(line);
+                }
+            }
+            index++;
+        }
+        List<TryCatchBlockNode> handlers = new ArrayList<>();
+        for (int i = 0; i < calls.size(); i++) {
+            MethodInsnNode call = calls.get(i);
+            int id = CallSites.register(cn.name, mn.name, mn.desc, indices.get(i), lines.get(i));
+            mn.instructions.insertBefore(call, generateEnterCallSite(new LdcInsnNode(id)));
+            InsnList after = new InsnList();
+            // A handler covering code before a constructor's super() call would need its own frame rules; there, a
+            // throwing callee's call site stays behind until the next instrumented method takes it.
+            if (!mn.name.equals("<init>")) {
+                // The handler is placed right after the call, so that any handler of the method's covering the call
+                // also covers the rethrow
+                LabelNode start = new LabelNode();
+                LabelNode end = new LabelNode();
+                LabelNode handler = new LabelNode();
+                LabelNode done = new LabelNode();
+                mn.instructions.insertBefore(call, start);
+                after.add(end);
+                after.add(generateEnterCallSite(new InsnNode(Opcodes.ICONST_0)));
+                after.add(new JumpInsnNode(Opcodes.GOTO, done));
+                after.add(handler);
+                after.add(generateEnterCallSite(new InsnNode(Opcodes.ICONST_0)));
+                InsnNode rethrow = new InsnNode(Opcodes.ATHROW);
+                after.add(rethrow);
+                callSiteRethrows.add(rethrow);
+                after.add(done);
+                // Innermost, so before any of the method's own handlers
+                handlers.add(new TryCatchBlockNode(start, end, handler, null));
+            } else {
+                after.add(generateEnterCallSite(new InsnNode(Opcodes.ICONST_0)));
+            }
+            mn.instructions.insert(call, after);
+            numCallSites++;
+        }
+        mn.tryCatchBlocks.addAll(0, handlers);
+    }
+
+    private static InsnList generateEnterCallSite(AbstractInsnNode pushId) {
+        InsnList enter = new InsnList();
+        enter.add(pushId);
+        enter.add(new MethodInsnNode(
+                Opcodes.INVOKESTATIC,
+                Type.getInternalName(CallSites.class),
+                "enter",
+                Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE),
+                false
+        ));
+        return enter;
+    }
+
     public MethodNode transformMethod(ClassNode cn, MethodNode mn) {
-        if (!isSuitableMethod(mn)) {
+        if (!isSuitableMethod(cn, mn)) {
             return mn;
         }
-        LOGGER.info("Transforming " + mn.name + " with descriptor " + mn.desc + ".");
         boolean isStatic = (mn.access & Opcodes.ACC_STATIC) != 0;
+        Type methodType = Type.getMethodType(mn.desc);
+        List<FieldNode> fields = fieldSelection.select(cn, mn);
+        List<InsnList> readFields = readFields(cn, fields);
+        List<InsnList> readParameters = readParameters(methodType, isStatic);
+        String[] fieldNames = fields.stream().map(fn -> fn.name).toArray(String[]::new);
+        int methodId = MethodRegistry.register(cn.name, mn.name, mn.desc, fieldNames, readParameters.size());
+        if (ConvergenceTracker.isConverged(methodId)) {
+            LOGGER.info("Not transforming " + mn.name + " with descriptor " + mn.desc + ": its profile has converged.");
+            return mn;
+        }
+        LOGGER.info("Transforming " + mn.name + " with descriptor " + mn.desc + ".");
+        numTransformed++;
 
-        // Create a local variable to store parameter data until method exit
+        // Create local variables to store the field and parameter bitmaps (and the sampling weight) until method exit
         // note: This is hacky. Normally you'd use a LocalVariablesSorter, but I don't think it fits the Tree API very well.
-        Type varType = Type.getType(NullnessDataPoint.class);
-        int dataPointVarIndex = mn.maxLocals;
-        mn.maxLocals += varType.getSize();
+        int numWords = Math.max(numWords(readFields.size()), numWords(readParameters.size()));
+        int bitmapSize = numWords <= MAX_LONG_LOCALS
+                ? numWords * Type.LONG_TYPE.getSize()
+                : Type.getType(long[].class).getSize();
+        int fieldsVarIndex = mn.maxLocals;
+        mn.maxLocals += bitmapSize;
+        int parametersVarIndex = mn.maxLocals;
+        mn.maxLocals += bitmapSize;
+        int weightVarIndex = -1;
+        if (sampled) {
+            weightVarIndex = mn.maxLocals;
+            mn.maxLocals += Type.INT_TYPE.getSize();
+        }
+        int callSiteVarIndex = -1;
+        if (CallSites.isEnabled()) {
+            callSiteVarIndex = mn.maxLocals;
+            mn.maxLocals += Type.INT_TYPE.getSize();
+        }
+
+        ProbeSite site = new ProbeSite(methodId, numWords, fieldsVarIndex, parametersVarIndex, weightVarIndex,
+                callSiteVarIndex);
 
-        // Store parameters' nullness information in local variable
-        InsnList prologue = generatePrologue(cn, mn, Type.getMethodType(mn.desc), isStatic, dataPointVarIndex);
+        // Store fields' and parameters' nullness information in local variables
+        InsnList prologue = new InsnList();
+        if (CallSites.isEnabled()) {
+            // Take the call site first thing, before this method's own calls replace it
+            prologue.add(new MethodInsnNode(
+                    Opcodes.INVOKESTATIC,
+                    Type.getInternalName(CallSites.class),
+                    "take",
+                    Type.getMethodDescriptor(Type.INT_TYPE),
+                    false
+            ));
+            prologue.add(new VarInsnNode(Opcodes.ISTORE, callSiteVarIndex));
+        }
+        LabelNode skip = new LabelNode();
+        if (sampled) {
+            // The bitmaps must be assigned on every path to the epilogues, even though they're unused when skipping.
+            prologue.add(clearBitmap(site, fieldsVarIndex));
+            prologue.add(clearBitmap(site, parametersVarIndex));
+            prologue.add(generateSampleCheck(site, skip));
+        }
+        prologue.add(generateBitmap(site, readFields, fieldsVarIndex));
+        prologue.add(generateBitmap(site, readParameters, parametersVarIndex));
+        if (sampled) {
+            prologue.add(skip);
+        }
         mn.instructions.insert(prologue);
 
         // Update each exit point to log results
         mn.instructions.forEach((node) -> {
             if (node.getOpcode() == Opcodes.ARETURN) {
-                mn.instructions.insertBefore(node, generateReturnEpilogue(dataPointVarIndex));
-            } else if (node.getOpcode() == Opcodes.ATHROW) {
-                mn.instructions.insertBefore(node, generateThrowEpilogue(dataPointVarIndex));
+                mn.instructions.insertBefore(node, generateReturnEpilogue(site));
+            } else if (node.getOpcode() == Opcodes.ATHROW && !callSiteRethrows.contains(node)) {
+                mn.instructions.insertBefore(node, generateThrowEpilogue(site));
             }
         });
 
@@ -64,11 +242,14 @@ public class MethodStabilityTransformer<T extends NullnessLogger> {
         return desc.startsWith("L") || desc.startsWith("[");
     }
 
-    boolean isSuitableMethod(MethodNode mn) {
+    boolean isSuitableMethod(ClassNode cn, MethodNode mn) {
         // Can't analyze null-stability of a constructor
         if (mn.name.equals("<init>")) {
             return false;
         }
+        if (!methodFilter.matches(cn.name, mn.name)) {
+            return false;
+        }
         Type methodType = Type.getMethodType(mn.desc);
         // Can't analyze null-stability with primitive/void return type
         if (!isNullable(methodType.getReturnType())) {
@@ -78,55 +259,23 @@ public class MethodStabilityTransformer<T extends NullnessLogger> {
         return Arrays.stream(methodType.getArgumentTypes()).anyMatch(this::isNullable);
     }
 
-    InsnList generateObjectArray(ArrayList<InsnList> values) {
-        InsnList result = new InsnList();
-        // step 1: allocate array
-        result.add(new LdcInsnNode(values.size()));
-        result.add(new TypeInsnNode(Opcodes.ANEWARRAY, Type.getInternalName(Object.class)));
-        // step 2: populate array
-        for (int i = 0; i < values.size(); i++) {
-            result.add(new InsnNode(Opcodes.DUP));
-            result.add(new LdcInsnNode(i));
-            result.add(values.get(i));
-            result.add(new InsnNode(Opcodes.AASTORE));
+    // Instructions which push each of the given fields of the receiver; see FieldSelection
+    List<InsnList> readFields(ClassNode cn, List<FieldNode> fields) {
+        List<InsnList> readFields = new ArrayList<>();
+        for (FieldNode fn : fields) {
+            InsnList list = new InsnList();
+            list.add(new VarInsnNode(Opcodes.ALOAD, 0));
+            list.add(new FieldInsnNode(Opcodes.GETFIELD, cn.name, fn.name, fn.desc));
+            readFields.add(list);
         }
-        return result;
+        return readFields;
     }
 
-    // Create a type_stability.NullnessDataPoint and store it in the variable at index dataPointVarIndex
-    InsnList generatePrologue(ClassNode cn, MethodNode mn, Type methodType, boolean isStatic, int dataPointVarIndex) {
-        Constructor<?> ctor = NullnessDataPoint.class.getConstructors()[0]; // Assumption: only one constructor
-        Type dataPointType = Type.getType(NullnessDataPoint.class);
-        Type[] argumentTypes = methodType.getArgumentTypes();
-        InsnList prologue = new InsnList();
-
-        // Allocate object
-        prologue.add(new TypeInsnNode(Opcodes.NEW, dataPointType.getInternalName()));
-
-        // Set up constructor call
-        prologue.add(new InsnNode(Opcodes.DUP)); // push object ref
-        prologue.add(new LdcInsnNode(cn.name)); // push className
-        prologue.add(new LdcInsnNode(mn.name)); // push methodName
-
-        // push fields array
-        ArrayList<InsnList> readFields = new ArrayList<>();
-        if ((mn.access & Opcodes.ACC_STATIC) == 0) {
-            for (FieldNode fn : cn.fields) {
-                if ((fn.access & Opcodes.ACC_STATIC) == 0 && isNullable(fn.desc)) {
-                    InsnList list = new InsnList();
-                    list.add(new VarInsnNode(Opcodes.ALOAD, 0));
-                    list.add(new FieldInsnNode(Opcodes.GETFIELD, cn.name, fn.name, fn.desc));
-                    readFields.add(list);
-                }
-            }
-        }
-        prologue.add(generateObjectArray(readFields));
-
-
-        // push parameter array
-        ArrayList<InsnList> readParameters = new ArrayList<>();
+    // Instructions which push each nullable parameter, in declaration order
+    List<InsnList> readParameters(Type methodType, boolean isStatic) {
+        List<InsnList> readParameters = new ArrayList<>();
         int localVarIdx = isStatic ? 0 : Type.getType(Object.class).getSize();
-        for (Type t : argumentTypes) {
+        for (Type t : methodType.getArgumentTypes()) {
             if (isNullable(t)) {
                 InsnList list = new InsnList();
                 list.add(new VarInsnNode(Opcodes.ALOAD, localVarIdx));
@@ -134,47 +283,212 @@ public class MethodStabilityTransformer<T extends NullnessLogger> {
             }
             localVarIdx += t.getSize(); // longs and doubles consume two "slots" in the local variables
         }
-        prologue.add(generateObjectArray(readParameters));
+        return readParameters;
+    }
+
+    // The number of 64-value words in a bitmap of width values; even an empty bitmap has one
+    static int numWords(int width) {
+        return Math.max(1, (width + 63) / 64);
+    }
+
+    // The bit of value i in its word of a bitmap of width values. Within each word, the first value is the most
+    // significant bit, so that a bitmap prints as its words' bits in order; see NullnessLogger.writeBitMap.
+    static long bitmapMask(int width, int i) {
+        int wordWidth = Math.min(64, width - i / 64 * 64);
+        return 1L << (wordWidth - 1 - i % 64);
+    }
+
+    // Assign the bitmap at bitmapVarIndex without computing it: zero its long locals, or null its array
+    InsnList clearBitmap(ProbeSite site, int bitmapVarIndex) {
+        InsnList result = new InsnList();
+        if (site.numWords > MAX_LONG_LOCALS) {
+            result.add(new InsnNode(Opcodes.ACONST_NULL));
+            result.add(new VarInsnNode(Opcodes.ASTORE, bitmapVarIndex));
+            return result;
+        }
+        for (int word = 0; word < site.numWords; word++) {
+            result.add(new InsnNode(Opcodes.LCONST_0));
+            result.add(new VarInsnNode(Opcodes.LSTORE, bitmapVarIndex + word * Type.LONG_TYPE.getSize()));
+        }
+        return result;
+    }
+
+    // Compute the nullity bitmap of values into the locals at index bitmapVarIndex. A set bit means the value is
+    // non-null. With a single word, and likewise per word with two:
+    //   bitmap = 0; if (v0 != null) bitmap |= 1 << (n-1); ...; if (v(n-1) != null) bitmap |= 1;
+    // and with more words:
+    //   bitmap = new long[numWords(n)]; if (v0 != null) bitmap[0] |= 1 << 63; ...
+    InsnList generateBitmap(ProbeSite site, List<InsnList> values, int bitmapVarIndex) {
+        InsnList result = new InsnList();
+        boolean packed = site.numWords > MAX_LONG_LOCALS;
+        if (packed) {
+            result.add(new LdcInsnNode(numWords(values.size())));
+            result.add(new IntInsnNode(Opcodes.NEWARRAY, Opcodes.T_LONG));
+            result.add(new VarInsnNode(Opcodes.ASTORE, bitmapVarIndex));
+        } else {
+            result.add(clearBitmap(site, bitmapVarIndex));
+        }
+        for (int i = 0; i < values.size(); i++) {
+            LabelNode isNull = new LabelNode();
+            result.add(values.get(i));
+            result.add(new JumpInsnNode(Opcodes.IFNULL, isNull));
+            if (packed) {
+                result.add(new VarInsnNode(Opcodes.ALOAD, bitmapVarIndex));
+                result.add(new LdcInsnNode(i / 64));
+                result.add(new InsnNode(Opcodes.DUP2));
+                result.add(new InsnNode(Opcodes.LALOAD));
+                result.add(new LdcInsnNode(bitmapMask(values.size(), i)));
+                result.add(new InsnNode(Opcodes.LOR));
+                result.add(new InsnNode(Opcodes.LASTORE));
+            } else {
+                int wordVarIndex = bitmapVarIndex + i / 64 * Type.LONG_TYPE.getSize();
+                result.add(new VarInsnNode(Opcodes.LLOAD, wordVarIndex));
+                result.add(new LdcInsnNode(bitmapMask(values.size(), i)));
+                result.add(new InsnNode(Opcodes.LOR));
+                result.add(new VarInsnNode(Opcodes.LSTORE, wordVarIndex));
+            }
+            result.add(isNull);
+        }
+        return result;
+    }
 
-        // Constructor call
-        prologue.add(new MethodInsnNode(
-                Opcodes.INVOKESPECIAL,
-                Type.getInternalName(NullnessDataPoint.class),
-                "<init>",
-                Type.getConstructorDescriptor(ctor)
+    // Ask NullnessSampler for this call's weight, and jump to skip if it shouldn't be recorded:
+    //   weight = NullnessSampler.sample(methodId); if (weight == 0) goto skip;
+    InsnList generateSampleCheck(ProbeSite site, LabelNode skip) {
+        InsnList result = new InsnList();
+        result.add(new LdcInsnNode(site.methodId));
+        result.add(new MethodInsnNode(
+                Opcodes.INVOKESTATIC,
+                Type.getInternalName(NullnessSampler.class),
+                "sample",
+                Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE),
+                false
         ));
-        // Write result to dataPoint variable
-        prologue.add(new VarInsnNode(Opcodes.ASTORE, dataPointVarIndex));
+        result.add(new InsnNode(Opcodes.DUP));
+        result.add(new VarInsnNode(Opcodes.ISTORE, site.weightVarIndex));
+        result.add(new JumpInsnNode(Opcodes.IFEQ, skip));
+        return result;
+    }
 
-        return prologue;
+    // Push the arguments shared by logReturn and logThrow (everything but the result)
+    InsnList pushProbeSite(ProbeSite site) {
+        InsnList result = new InsnList();
+        result.add(new LdcInsnNode(site.methodId));
+        result.add(pushBitmap(site, site.fieldsVarIndex));
+        result.add(pushBitmap(site, site.parametersVarIndex));
+        if (sampled) {
+            result.add(new VarInsnNode(Opcodes.ILOAD, site.weightVarIndex));
+        }
+        return result;
+    }
+
+    InsnList pushBitmap(ProbeSite site, int bitmapVarIndex) {
+        InsnList result = new InsnList();
+        if (site.numWords > MAX_LONG_LOCALS) {
+            result.add(new VarInsnNode(Opcodes.ALOAD, bitmapVarIndex));
+            return result;
+        }
+        for (int word = 0; word < site.numWords; word++) {
+            result.add(new VarInsnNode(Opcodes.LLOAD, bitmapVarIndex + word * Type.LONG_TYPE.getSize()));
+        }
+        return result;
     }
 
-    InsnList generateReturnEpilogue(int dataPointVarIndex) {
+    // The types pushProbeSite pushes: (int methodId, fields..., parameters...[, int weight])
+    Type[] probeSiteTypes(ProbeSite site) {
+        List<Type> types = new ArrayList<>();
+        types.add(Type.INT_TYPE);
+        for (int i = 0; i < 2; i++) {
+            if (site.numWords > MAX_LONG_LOCALS) {
+                types.add(Type.getType(long[].class));
+            } else {
+                types.addAll(Collections.nCopies(site.numWords, Type.LONG_TYPE));
+            }
+        }
+        if (sampled) {
+            types.add(Type.INT_TYPE);
+        }
+        return types.toArray(new Type[0]);
+    }
+
+    // Wrap an epilogue so that it only runs for recorded calls, and hands the logger the call site
+    InsnList guardEpilogue(ProbeSite site, InsnList epilogue) {
+        if (site.callSiteVarIndex >= 0) {
+            InsnList enter = new InsnList();
+            enter.add(new VarInsnNode(Opcodes.ILOAD, site.callSiteVarIndex));
+            enter.add(new MethodInsnNode(
+                    Opcodes.INVOKESTATIC,
+                    Type.getInternalName(CallSites.class),
+                    "enter",
+                    Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE),
+                    false
+            ));
+            epilogue.insert(enter);
+        }
+        if (!sampled) {
+            return epilogue;
+        }
+        InsnList result = new InsnList();
+        LabelNode skip = new LabelNode();
+        result.add(new VarInsnNode(Opcodes.ILOAD, site.weightVarIndex));
+        result.add(new JumpInsnNode(Opcodes.IFEQ, skip));
+        result.add(epilogue);
+        result.add(skip);
+        return result;
+    }
+
+    InsnList generateReturnEpilogue(ProbeSite site) {
         InsnList epilogue = new InsnList();
-        epilogue.add(new InsnNode(Opcodes.DUP)); // rv -> rv
-        epilogue.add(new VarInsnNode(Opcodes.ALOAD, dataPointVarIndex)); // rv -> rv -> datapoint
-        epilogue.add(new InsnNode(Opcodes.SWAP)); // rv -> datapoint -> rv
+        epilogue.add(new InsnNode(Opcodes.DUP)); // rv -> rv -> rv
+        epilogue.add(pushProbeSite(site)); // rv -> rv -> site...
         epilogue.add(new MethodInsnNode(
                 Opcodes.INVOKESTATIC,
                 Type.getInternalName(loggerClass),
                 "logReturn",
-                Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(NullnessDataPoint.class), Type.getType(Object.class)),
+                Type.getMethodDescriptor(Type.VOID_TYPE, prepend(Type.getType(Object.class), probeSiteTypes(site))),
                 false
         )); // rv
-        return epilogue;
+        return guardEpilogue(site, epilogue);
     }
 
-    InsnList generateThrowEpilogue(int dataPointVarIndex) {
+    InsnList generateThrowEpilogue(ProbeSite site) {
         InsnList epilogue = new InsnList();
-        epilogue.add(new VarInsnNode(Opcodes.ALOAD, dataPointVarIndex)); // exn -> datapoint
+        epilogue.add(pushProbeSite(site)); // exn -> site...
         epilogue.add(new MethodInsnNode(
                 Opcodes.INVOKESTATIC,
                 Type.getInternalName(loggerClass),
                 "logThrow",
-                Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(NullnessDataPoint.class)),
+                Type.getMethodDescriptor(Type.VOID_TYPE, probeSiteTypes(site)),
                 false
         )); // exn
-        return epilogue;
+        return guardEpilogue(site, epilogue);
+    }
+
+    private static Type[] prepend(Type first, Type[] rest) {
+        Type[] result = new Type[rest.length + 1];
+        result[0] = first;
+        System.arraycopy(rest, 0, result, 1, rest.length);
+        return result;
+    }
+
+    // Where an instrumented method keeps its probe data
+    static class ProbeSite {
+        final int methodId;
+        final int numWords; // per bitmap; see MAX_LONG_LOCALS
+        final int fieldsVarIndex;
+        final int parametersVarIndex;
+        final int weightVarIndex; // only when sampled
+        final int callSiteVarIndex; // only with CallSites enabled
+
+        ProbeSite(int methodId, int numWords, int fieldsVarIndex, int parametersVarIndex, int weightVarIndex,
+                  int callSiteVarIndex) {
+            this.methodId = methodId;
+            this.numWords = numWords;
+            this.fieldsVarIndex = fieldsVarIndex;
+            this.parametersVarIndex = parametersVarIndex;
+            this.weightVarIndex = weightVarIndex;
+            this.callSiteVarIndex = callSiteVarIndex;
+        }
     }
 
 }
@@ -1,85 +1,475 @@
 package type_stability;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 public class NullnessAggregateLogger extends NullnessLogger {
     private static final Logger LOGGER = Logger.getLogger(NullnessAggregateLogger.class.getName());
 
-    // counts[n_params].get(bitmap)[outcome], where
-    //   n_params: number of nullable parameters [0, 64)
-    //   bitmap: long representing nullity of parameters (as bitmap)
-    //   outcome: 0, 1, 2 (return null, return nonnull, throw)
-    private class Entry {
-        final byte numFields;
-        final long fields; // bitmap
-        final byte numParameters;
-        final long parameters; // bitmap
-        final char result;
-
-        Entry(byte numFields, long fields, byte numParameters, long parameters, char result) {
-            this.numFields = numFields;
+    // Each thread counts its events in its own AggregateTable, so logging never takes a lock. The tables are keyed by
+    //   meta: method ID, result and (with --call-sites) call site packed into a long (see meta())
+    //   fields: long representing nullity of fields (as bitmap)
+    //   parameters: long representing nullity of parameters (as bitmap)
+    // and are only merged in finish(). Events of methods with 65 to 128 reftype fields or parameters are counted
+    // likewise, in per-thread tables with two-word bitmaps; wider ones in wideCounts.
+    private final ThreadLocal<AggregateTable> tables = ThreadLocal.withInitial(() -> register(false));
+    private final ThreadLocal<AggregateTable> twoWordTables = ThreadLocal.withInitial(() -> register(true));
+
+    // Tables of threads which have logged something. Guarded by this.
+    private final List<AggregateTable> liveTables = new ArrayList<>();
+    private final List<AggregateTable> liveTwoWordTables = new ArrayList<>();
+    // Counts merged from the tables of threads which have died. Guarded by this.
+    private final AggregateTable retiredTable = new AggregateTable(null);
+    private final AggregateTable retiredTwoWordTable = new AggregateTable(null, true);
+    private int sweepThreshold = 16;
+
+    // Events of methods with more than 128 reftype fields or parameters don't fit the tables' keys. Such methods are
+    // rare, so their events are counted in one shared map instead, by {count, weight}.
+    private final ConcurrentHashMap<WideKey, LongAdder[]> wideCounts = new ConcurrentHashMap<>();
+
+    private static class WideKey {
+        final long meta;
+        final long[] fields;
+        final long[] parameters;
+
+        WideKey(long meta, long[] fields, long[] parameters) {
+            this.meta = meta;
             this.fields = fields;
-            this.numParameters = numParameters;
             this.parameters = parameters;
-            this.result = result;
         }
 
         @Override
         public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Entry entry = (Entry) o;
-            return numFields == entry.numFields &&
-                    fields == entry.fields &&
-                    numParameters == entry.numParameters &&
-                    parameters == entry.parameters &&
-                    result == entry.result;
+            if (!(o instanceof WideKey)) {
+                return false;
+            }
+            WideKey other = (WideKey) o;
+            return meta == other.meta && Arrays.equals(fields, other.fields)
+                    && Arrays.equals(parameters, other.parameters);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(numFields, fields, numParameters, parameters, result);
+            return (Long.hashCode(meta) * 31 + Arrays.hashCode(fields)) * 31 + Arrays.hashCode(parameters);
         }
     }
 
-    private final HashMap<Entry, Integer> counts;
-
     protected NullnessAggregateLogger(String outputFile) throws IOException {
         super(outputFile);
-        counts = new HashMap<>();
-        outputWriter.append("fields,params,result,count\n");
+    }
+
+    // With --mergeable, the agent arguments for the profile's header; see ProfileFormat
+    private String mergeableAgentArgs = null;
+
+    void writeMergeable(String agentArgs) {
+        mergeableAgentArgs = agentArgs;
+    }
+
+    private static final long OCCUPIED = 1L << 63;
+
+    // Bits 0-7 are the result, 8-39 the method ID, 40-62 the call site (see CallSites.MAX_ID)
+    private static long meta(int methodId, char result, int callSite) {
+        return OCCUPIED | (long) callSite << 40 | (methodId & 0xffffffffL) << 8 | (result & 0xffL);
+    }
+
+    // The probe hands over the call site just before logging; see CallSites
+    private static int takeCallSite() {
+        return CallSites.isEnabled() ? CallSites.take() : 0;
+    }
+
+    private static int methodId(long meta) {
+        return (int) (meta >>> 8);
+    }
+
+    private static int callSite(long meta) {
+        return (int) (meta >>> 40) & CallSites.MAX_ID;
+    }
+
+    private static char result(long meta) {
+        return (char) (meta & 0xff);
+    }
+
+    // The file the method table is written to, when the counts are written to outputFile
+    static String methodTableFile(String outputFile) {
+        return outputFile + ".methods";
+    }
+
+    // The file the call site table is written to, with --call-sites
+    static String callSiteTableFile(String outputFile) {
+        return outputFile + ".callsites";
+    }
+
+    // Called once per thread and kind of table, on its first event
+    private synchronized AggregateTable register(boolean twoWords) {
+        // Fold the tables of dead threads into the retired tables, so that short-lived threads don't accumulate. This
+        // is amortized over registrations and never happens on the logging path itself.
+        if (liveTables.size() + liveTwoWordTables.size() >= sweepThreshold) {
+            sweep(liveTables, retiredTable);
+            sweep(liveTwoWordTables, retiredTwoWordTable);
+            sweepThreshold = Math.max(16, (liveTables.size() + liveTwoWordTables.size()) * 2);
+        }
+        AggregateTable table = new AggregateTable(Thread.currentThread(), twoWords);
+        (twoWords ? liveTwoWordTables : liveTables).add(table);
+        return table;
+    }
+
+    private static void sweep(List<AggregateTable> live, AggregateTable retired) {
+        Iterator<AggregateTable> it = live.iterator();
+        while (it.hasNext()) {
+            AggregateTable t = it.next();
+            if (!t.isOwnerAlive()) {
+                retired.addAll(t);
+                it.remove();
+            }
+        }
     }
 
     @Override
-    protected synchronized void log(NullnessDataPoint pt, char result) {
-        Entry e = new Entry(pt.numFields, pt.fields, pt.numParameters, pt.parameters, result);
-        int value = counts.getOrDefault(e, 0);
-        counts.put(e, value+1);
+    protected void log(int methodId, long fields, long parameters, char result, int weight) {
+        tables.get().increment(meta(methodId, result, takeCallSite()), fields, parameters, 1, weight);
+    }
+
+    @Override
+    protected void log(int methodId, long fields0, long fields1, long parameters0, long parameters1, char result,
+                       int weight) {
+        twoWordTables.get().incrementTwoWords(meta(methodId, result, takeCallSite()), fields0, fields1, parameters0,
+                parameters1, 1, weight);
+    }
+
+    // The probes allocate fresh bitmaps for every event, so they can be kept as keys.
+    @Override
+    protected void log(int methodId, long[] fields, long[] parameters, char result, int weight) {
+        WideKey key = new WideKey(meta(methodId, result, takeCallSite()), fields, parameters);
+        LongAdder[] counts = wideCounts.computeIfAbsent(key, k -> new LongAdder[]{new LongAdder(), new LongAdder()});
+        counts[0].increment();
+        counts[1].add(weight);
+    }
+
+    // Counts of every thread as of now, without stopping them. Guarded by this, since register() moves counts from
+    // liveTables to retiredTable.
+    private AggregateTable mergeTables() {
+        AggregateTable merged = new AggregateTable(null);
+        merged.addAll(retiredTable);
+        for (AggregateTable t : liveTables) {
+            merged.addAll(t);
+        }
+        return merged;
+    }
+
+    // {count, weight} of the two-word tables and wideCounts as of now, with the two-word bitmaps as arrays of as many
+    // words as their widths need, like the probes of wider methods pass them. Guarded by this, like mergeTables().
+    private Map<WideKey, long[]> wideSnapshot() {
+        Map<WideKey, long[]> snapshot = new HashMap<>();
+        AggregateTable twoWords = new AggregateTable(null, true);
+        twoWords.addAll(retiredTwoWordTable);
+        for (AggregateTable t : liveTwoWordTables) {
+            twoWords.addAll(t);
+        }
+        twoWords.forEachTwoWords((meta, fields0, fields1, parameters0, parameters1, count, weight) -> {
+            int methodId = methodId(meta);
+            snapshot.put(new WideKey(meta, words(methodId, true, fields0, fields1),
+                    words(methodId, false, parameters0, parameters1)), new long[]{count, weight});
+        });
+        wideCounts.forEach((key, counts) -> snapshot.put(key, new long[]{counts[0].sum(), counts[1].sum()}));
+        return snapshot;
+    }
+
+    private String header() {
+        // Sampled profiles also get the sum of the events' weights, i.e. the estimated number of calls. With call
+        // sites, each row counts the events of one method called from one call site.
+        return (CallSites.isEnabled() ? "callsite," : "") + (NullnessSampler.isEnabled()
+                ? "method,fields,params,result,count,estimate\n"
+                : "method,fields,params,result,count\n");
+    }
+
+    // One line per key, except those whose count and weight are both 0
+    private static void writeRows(Writer writer, AggregateTable table, Map<WideKey, long[]> wide) throws IOException {
+        try {
+            table.forEach((meta, fields, parameters, count, weight) -> {
+                if (count == 0 && weight == 0) {
+                    return;
+                }
+                MethodRegistry.MethodInfo method = MethodRegistry.get(methodId(meta));
+                try {
+                    writeKey(writer, meta);
+                    writer.append(',');
+                    writeBitMap(writer, method.numFields, fields);
+                    writer.append(',');
+                    writeBitMap(writer, method.numParameters, parameters);
+                    writeCounts(writer, meta, count, weight);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        for (Map.Entry<WideKey, long[]> entry : wide.entrySet()) {
+            WideKey key = entry.getKey();
+            long[] counts = entry.getValue();
+            if (counts[0] == 0 && counts[1] == 0) {
+                continue;
+            }
+            MethodRegistry.MethodInfo method = MethodRegistry.get(methodId(key.meta));
+            writeKey(writer, key.meta);
+            writer.append(',');
+            writeBitMap(writer, method.numFields, key.fields);
+            writer.append(',');
+            writeBitMap(writer, method.numParameters, key.parameters);
+            writeCounts(writer, key.meta, counts[0], counts[1]);
+        }
+    }
+
+    // The rows of writeRows in the mergeable format, keyed by names instead of IDs and sorted
+    private void writeProfile(Writer writer, AggregateTable table, Map<WideKey, long[]> wide) throws IOException {
+        TreeMap<String, long[]> rows = new TreeMap<>();
+        table.forEach((meta, fields, parameters, count, weight) -> {
+            MethodRegistry.MethodInfo method = MethodRegistry.get(methodId(meta));
+            StringWriter key = new StringWriter();
+            try {
+                writeBitMap(key, method.numFields, fields);
+                key.append(',');
+                writeBitMap(key, method.numParameters, parameters);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            addProfileRow(rows, meta, key.toString(), count, weight);
+        });
+        for (Map.Entry<WideKey, long[]> entry : wide.entrySet()) {
+            WideKey key = entry.getKey();
+            MethodRegistry.MethodInfo method = MethodRegistry.get(methodId(key.meta));
+            StringWriter bitmaps = new StringWriter();
+            writeBitMap(bitmaps, method.numFields, key.fields);
+            bitmaps.append(',');
+            writeBitMap(bitmaps, method.numParameters, key.parameters);
+            addProfileRow(rows, key.meta, bitmaps.toString(), entry.getValue()[0], entry.getValue()[1]);
+        }
+        ProfileFormat.Header header = ProfileFormat.Header.current(mergeableAgentArgs, CallSites.isEnabled(),
+                NullnessSampler.isEnabled());
+        header.write(writer);
+        for (Map.Entry<String, long[]> row : rows.entrySet()) {
+            ProfileFormat.writeRow(writer, row.getKey(), row.getValue());
+        }
+    }
+
+    private static void addProfileRow(TreeMap<String, long[]> rows, long meta, String bitmaps, long count,
+                                      long weight) {
+        if (count == 0 && weight == 0) {
+            return;
+        }
+        MethodRegistry.MethodInfo method = MethodRegistry.get(methodId(meta));
+        StringBuilder key = new StringBuilder();
+        if (CallSites.isEnabled()) {
+            key.append(CallSites.describe(callSite(meta))).append(',');
+        }
+        key.append(method.className).append(',')
+                .append(method.methodName).append(',')
+                .append(method.descriptor).append(',')
+                .append(MethodRegistry.fieldsCell(method)).append(',')
+                .append(bitmaps).append(',')
+                .append(result(meta));
+        long[] counts = NullnessSampler.isEnabled() ? new long[]{count, weight} : new long[]{count};
+        // Two method IDs may share a name, e.g. when a class is loaded by two class loaders
+        rows.merge(key.toString(), counts, (a, b) -> {
+            for (int i = 0; i < a.length; i++) {
+                a[i] += b[i];
+            }
+            return a;
+        });
+    }
+
+    // The call site, if any, and the method
+    private static void writeKey(Writer writer, long meta) throws IOException {
+        if (CallSites.isEnabled()) {
+            writer.append(Integer.toString(callSite(meta)));
+            writer.append(',');
+        }
+        writer.append(Integer.toString(methodId(meta)));
+    }
+
+    private static void writeCounts(Writer writer, long meta, long count, long weight) throws IOException {
+        writer.append(',');
+        writer.append(result(meta));
+        writer.append(',');
+        writer.append(Long.toString(count));
+        if (NullnessSampler.isEnabled()) {
+            writer.append(',');
+            writer.append(Long.toString(weight));
+        }
+        writer.append('\n');
+    }
+
+    // Write the method table next to outputFile, replacing it atomically so that a crash never leaves half a table
+    static void writeMethodTable(String outputFile) throws IOException {
+        Path path = Paths.get(methodTableFile(outputFile));
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (Writer methodWriter = Files.newBufferedWriter(tmp)) {
+                MethodRegistry.writeTable(methodWriter);
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        if (CallSites.isEnabled()) {
+            writeCallSiteTable(outputFile);
+        }
+    }
+
+    // Without a log file the counts go to stdout, which stays a plain CSV: the method table goes to stderr instead
+    static void writeMethodTableToStderr() throws IOException {
+        Writer errorWriter = new BufferedWriter(new OutputStreamWriter(System.err));
+        MethodRegistry.writeTable(errorWriter);
+        // Don't close stderr!
+        errorWriter.flush();
+    }
+
+    // Likewise for the call site table
+    private static void writeCallSiteTable(String outputFile) throws IOException {
+        Path path = Paths.get(callSiteTableFile(outputFile));
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (Writer callSiteWriter = Files.newBufferedWriter(tmp)) {
+                CallSites.writeTable(callSiteWriter);
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // With --checkpoint, the counts added since the previous checkpoint are appended to checkpointFile(outputFile)
+    // at every interval, so that a process which dies without running its shutdown hooks loses at most one interval
+    // of counts. CheckpointMerger adds the deltas back up. Layout: a header line, then per checkpoint
+    //   # checkpoint <n> <epoch millis>
+    //   rows in the format of outputFile, with counts and weights since checkpoint n-1
+    //   # end <n>
+    // A checkpoint without its end line was cut short and is ignored by CheckpointMerger.
+    static String checkpointFile(String outputFile) {
+        return outputFile + ".checkpoints";
+    }
+
+    // Guarded by this
+    private AggregateTable checkpointed = new AggregateTable(null);
+    private Map<WideKey, long[]> wideCheckpointed = new HashMap<>();
+    private int numCheckpoints = 0;
+    private Thread checkpointer = null;
+
+    synchronized void startCheckpoints(int intervalSeconds) throws IOException {
+        if (outputFile == null) {
+            throw new IllegalArgumentException("Checkpoints require a log file.");
+        }
+        Files.write(Paths.get(checkpointFile(outputFile)), header().getBytes(StandardCharsets.UTF_8));
+        checkpointer = new Thread(() -> checkpointLoop(intervalSeconds), "type-stability-checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    private void checkpointLoop(int intervalSeconds) {
+        try {
+            while (true) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(intervalSeconds));
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    LOGGER.warning("Could not write checkpoint to " + checkpointFile(outputFile) + ": " +
+                            e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void checkpoint() throws IOException {
+        // Once finish() has written the last checkpoint, later ones would disagree with outputFile
+        if (checkpointer != null) {
+            writeCheckpoint();
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        AggregateTable totals = mergeTables();
+        Map<WideKey, long[]> wideTotals = wideSnapshot();
+
+        // Counts are only ever added to, so the delta is the difference of consecutive snapshots. A count read
+        // slightly stale is simply picked up by the next checkpoint.
+        AggregateTable delta = new AggregateTable(null);
+        delta.addAll(totals);
+        checkpointed.forEach((meta, fields, parameters, count, weight) ->
+                delta.increment(meta, fields, parameters, -count, -weight));
+        Map<WideKey, long[]> wideDelta = new HashMap<>();
+        wideTotals.forEach((key, counts) -> {
+            long[] previous = wideCheckpointed.getOrDefault(key, new long[2]);
+            wideDelta.put(key, new long[]{counts[0] - previous[0], counts[1] - previous[1]});
+        });
+
+        // Methods are registered before they log anything, so the table covers every row of the checkpoint
+        writeMethodTable(outputFile);
+        int n = numCheckpoints + 1;
+        try (Writer writer = Files.newBufferedWriter(Paths.get(checkpointFile(outputFile)),
+                StandardOpenOption.APPEND)) {
+            writer.append("# checkpoint ").append(Integer.toString(n)).append(' ')
+                    .append(Long.toString(System.currentTimeMillis())).append('\n');
+            writeRows(writer, delta, wideDelta);
+            writer.append("# end ").append(Integer.toString(n)).append('\n');
+        }
+        numCheckpoints = n;
+        checkpointed = totals;
+        wideCheckpointed = wideTotals;
     }
 
     @Override
     protected synchronized void finish() {
         try {
-            for (Map.Entry<Entry, Integer> pair: counts.entrySet()) {
-                Entry e = pair.getKey();
-                logBitMap(e.numFields, e.fields);
-                outputWriter.append(',');
-                logBitMap(e.numParameters, e.parameters);
-                outputWriter.append(',');
-                outputWriter.append(e.result);
-                outputWriter.append(',');
-                outputWriter.append(pair.getValue().toString());
-                outputWriter.append('\n');
+            if (checkpointer != null) {
+                checkpointer.interrupt();
+                checkpointer = null;
+                // The last checkpoint makes the deltas add up to the same totals as outputFile
+                writeCheckpoint();
+            }
+            if (mergeableAgentArgs != null) {
+                // Self-describing, so there's no method table
+                writeProfile(outputWriter, mergeTables(), wideSnapshot());
+                if (outputFile == null) {
+                    outputWriter.flush();
+                } else {
+                    outputWriter.close();
+                }
+                return;
             }
-            outputWriter.flush();
+            outputWriter.append(header());
+            writeRows(outputWriter, mergeTables(), wideSnapshot());
 
-            if (outputFile != null) {
+            // The method table is written once, alongside the counts
+            if (outputFile == null) {
                 // Don't close stdout!
+                outputWriter.flush();
+                writeMethodTableToStderr();
+            } else {
                 outputWriter.close();
+                writeMethodTable(outputFile);
             }
         } catch (IOException e) {
             LOGGER.severe("An exception occurred while closing the NullnessAggregateLogger file " + outputFile);
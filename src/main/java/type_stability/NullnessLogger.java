@@ -8,23 +8,186 @@ import java.util.logging.Logger;
 public class NullnessLogger {
     private static final Logger LOGGER = Logger.getLogger(NullnessLogger.class.getName());
 
-    public static NullnessLogger instance = null;
+    // Volatile so that probes notice when detach() replaces it
+    public static volatile NullnessLogger instance = null;
+    private static Thread cleanupThread = null;
+    // Whether raw and binary logs, which identify methods by name, also get a method table; see writeFieldTable
+    private static boolean fieldTable = false;
 
-    public static void initialize(Class<? extends NullnessLogger> loggerClass, String outputFile) throws Exception {
+    static void initialize(Config conf) throws Exception {
         if (instance != null) {
             throw new RuntimeException(NullnessLogger.class.getName() + " was initialized twice.");
         }
-        Constructor<? extends NullnessLogger> ctor = loggerClass.getDeclaredConstructor(String.class);
+        Constructor<? extends NullnessLogger> ctor = conf.loggerClass.getDeclaredConstructor(String.class);
         ctor.setAccessible(true);
-        instance = ctor.newInstance(outputFile);
+        NullnessLogger logger = ctor.newInstance(conf.logFile);
+        fieldTable = conf.fieldSelection().isEnabled();
+        if (conf.checkpointInterval > 0) {
+            ((NullnessAggregateLogger) logger).startCheckpoints(conf.checkpointInterval);
+        }
+        if (conf.mergeable) {
+            ((NullnessAggregateLogger) logger).writeMergeable(conf.agentArgs);
+        }
+        if (conf.async) {
+            logger = new AsyncNullnessLogger(logger, conf.ringSize, conf.overflowPolicy);
+        }
+        // Only the outermost logger gets a shutdown hook; it's responsible for finishing any logger it wraps.
+        cleanupThread = logger.getCleanupThread();
+        Runtime.getRuntime().addShutdownHook(cleanupThread);
+        instance = logger;
+    }
+
+    // How long detach() gives probes which have already read `instance` to finish logging, so that their events aren't
+    // lost. Probes which take longer (e.g. stalled by a GC) are safe too, since finished loggers drop events.
+    private static final long DETACH_GRACE_MILLIS = 100;
+
+    // Finish the logger now rather than at shutdown (see ProfilingWindow). Events logged afterwards, e.g. by methods
+    // still running an instrumented version of their code, are discarded: by the logger swapped in, or if a probe read
+    // `instance` before the swap, by the finished logger itself.
+    static void detach() throws InterruptedException {
+        NullnessLogger logger = instance;
+        instance = new NullnessLogger(null, null) {
+            @Override
+            protected void log(int methodId, long fields, long parameters, char result, int weight) {
+            }
+
+            @Override
+            protected void log(int methodId, long fields0, long fields1, long parameters0, long parameters1,
+                               char result, int weight) {
+            }
+
+            @Override
+            protected void log(int methodId, long[] fields, long[] parameters, char result, int weight) {
+            }
+
+            @Override
+            protected void finish() {
+            }
+        };
+        Thread.sleep(DETACH_GRACE_MILLIS);
+        try {
+            Runtime.getRuntime().removeShutdownHook(cleanupThread);
+        } catch (IllegalStateException e) {
+            return; // the JVM is already shutting down, and the hook finishes the logger
+        }
+        logger.finish();
+    }
+
+    // Probes compute the field and parameter bitmaps inline and identify their method by its MethodRegistry ID, so
+    // logging an event allocates nothing, unless its method has more than 128 reftype fields or parameters.
+    public static void logReturn(Object result, int methodId, long fields, long parameters) {
+        record(methodId, fields, parameters, result == null ? NULL : NONNULL, 1);
+    }
+
+    public static void logThrow(int methodId, long fields, long parameters) {
+        record(methodId, fields, parameters, THROW, 1);
+    }
+
+    // Used by probes when sampling: weight is the number of calls this event stands for (see NullnessSampler)
+    public static void logReturn(Object result, int methodId, long fields, long parameters, int weight) {
+        record(methodId, fields, parameters, result == null ? NULL : NONNULL, weight);
+    }
+
+    public static void logThrow(int methodId, long fields, long parameters, int weight) {
+        record(methodId, fields, parameters, THROW, weight);
+    }
+
+    // Used by probes of methods with 65 to 128 reftype fields or parameters, whose bitmaps are split into two words.
+    // A bitmap of at most 64 values has 0 as its second word.
+    public static void logReturn(Object result, int methodId, long fields0, long fields1,
+                                 long parameters0, long parameters1) {
+        recordTwoWords(methodId, fields0, fields1, parameters0, parameters1, result == null ? NULL : NONNULL, 1);
+    }
+
+    public static void logThrow(int methodId, long fields0, long fields1, long parameters0, long parameters1) {
+        recordTwoWords(methodId, fields0, fields1, parameters0, parameters1, THROW, 1);
+    }
+
+    public static void logReturn(Object result, int methodId, long fields0, long fields1,
+                                 long parameters0, long parameters1, int weight) {
+        recordTwoWords(methodId, fields0, fields1, parameters0, parameters1, result == null ? NULL : NONNULL, weight);
+    }
+
+    public static void logThrow(int methodId, long fields0, long fields1, long parameters0, long parameters1,
+                                int weight) {
+        recordTwoWords(methodId, fields0, fields1, parameters0, parameters1, THROW, weight);
+    }
+
+    // Used by probes of methods with more than 128 reftype fields or parameters, whose bitmaps are packed into arrays
+    public static void logReturn(Object result, int methodId, long[] fields, long[] parameters) {
+        recordWide(methodId, fields, parameters, result == null ? NULL : NONNULL, 1);
+    }
+
+    public static void logThrow(int methodId, long[] fields, long[] parameters) {
+        recordWide(methodId, fields, parameters, THROW, 1);
+    }
+
+    public static void logReturn(Object result, int methodId, long[] fields, long[] parameters, int weight) {
+        recordWide(methodId, fields, parameters, result == null ? NULL : NONNULL, weight);
+    }
+
+    public static void logThrow(int methodId, long[] fields, long[] parameters, int weight) {
+        recordWide(methodId, fields, parameters, THROW, weight);
+    }
+
+    // The words of one of a two-word method's bitmaps, as many as its width needs, for loggers which only take arrays
+    static long[] words(int methodId, boolean isFields, long word0, long word1) {
+        MethodRegistry.MethodInfo method = MethodRegistry.get(methodId);
+        int width = isFields ? method.numFields : method.numParameters;
+        return MethodStabilityTransformer.numWords(width) == 1 ? new long[]{word0} : new long[]{word0, word1};
+    }
+
+    // Fold a multi-word bitmap into a long, for the sampler and convergence tracker, which only compare outcomes
+    private static long fold(long[] bitmap) {
+        long h = 0;
+        for (long word : bitmap) {
+            h = (h ^ word) * 0x9E3779B97F4A7C15L;
+        }
+        return h;
+    }
+
+    private static long fold(long word0, long word1) {
+        return (word0 * 0x9E3779B97F4A7C15L ^ word1) * 0x9E3779B97F4A7C15L;
+    }
+
+    private static void record(int methodId, long fields, long parameters, char result, int weight) {
+        if (LiveStats.isEnabled()) {
+            LiveStats.count(methodId, result, weight);
+        }
+        if (NullnessSampler.isAdaptive()) {
+            NullnessSampler.observe(methodId, fields, parameters, result);
+        }
+        if (ConvergenceTracker.isEnabled()) {
+            ConvergenceTracker.observe(methodId, fields, parameters, result);
+        }
+        instance.log(methodId, fields, parameters, result, weight);
     }
 
-    public static void logReturn(NullnessDataPoint pt, Object result) {
-        instance.log(pt, result == null ? NULL : NONNULL);
+    private static void recordTwoWords(int methodId, long fields0, long fields1, long parameters0, long parameters1,
+                                       char result, int weight) {
+        if (LiveStats.isEnabled()) {
+            LiveStats.count(methodId, result, weight);
+        }
+        if (NullnessSampler.isAdaptive()) {
+            NullnessSampler.observe(methodId, fold(fields0, fields1), fold(parameters0, parameters1), result);
+        }
+        if (ConvergenceTracker.isEnabled()) {
+            ConvergenceTracker.observe(methodId, fold(fields0, fields1), fold(parameters0, parameters1), result);
+        }
+        instance.log(methodId, fields0, fields1, parameters0, parameters1, result, weight);
     }
 
-    public static void logThrow(NullnessDataPoint pt) {
-        instance.log(pt, THROW);
+    private static void recordWide(int methodId, long[] fields, long[] parameters, char result, int weight) {
+        if (LiveStats.isEnabled()) {
+            LiveStats.count(methodId, result, weight);
+        }
+        if (NullnessSampler.isAdaptive()) {
+            NullnessSampler.observe(methodId, fold(fields), fold(parameters), result);
+        }
+        if (ConvergenceTracker.isEnabled()) {
+            ConvergenceTracker.observe(methodId, fold(fields), fold(parameters), result);
+        }
+        instance.log(methodId, fields, parameters, result, weight);
     }
 
 
@@ -34,49 +197,148 @@ public class NullnessLogger {
 
     protected final String outputFile;
     protected final Writer outputWriter;
+    // Set by finish() of loggers whose log() writes to a file. They check it under the same lock as finish(), and drop
+    // events logged afterwards (see detach()) rather than write to a closed file.
+    protected boolean finished = false;
 
     protected NullnessLogger(String outputFile) throws IOException {
+        this(outputFile, outputFile == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out))
+                : new BufferedWriter(new FileWriter(outputFile)));
+    }
+
+    // For loggers which don't write text; outputWriter may be null, in which case the subclass must override finish()
+    protected NullnessLogger(String outputFile, Writer outputWriter) {
         this.outputFile = outputFile;
-        if (outputFile == null) {
-            this.outputWriter = new BufferedWriter(new OutputStreamWriter(System.out));
-        } else {
-            this.outputWriter = new BufferedWriter(new FileWriter(outputFile));
+        this.outputWriter = outputWriter;
+    }
+
+    // Write the low length bits of bitmap, most significant first
+    static void writeBitMap(Writer writer, int length, long bitmap) throws IOException {
+        for (int bit = length - 1; bit >= 0; bit--) {
+            writer.append((bitmap >>> bit & 1) != 0 ? '1' : '0');
         }
-        Runtime.getRuntime().addShutdownHook(getCleanupThread());
     }
 
-    protected void logBitMap(byte length, long bitmap) throws IOException {
-        long i = 1 << (length - 1);
-        while (i > 0) {
-            outputWriter.append((i & bitmap) != 0 ? '1' : '0');
-            i >>= 1;
+    // Write a bitmap of length values split into 64-value words (see MethodStabilityTransformer.bitmapMask)
+    static void writeBitMap(Writer writer, int length, long[] bitmap) throws IOException {
+        for (int word = 0; word < bitmap.length; word++) {
+            writeBitMap(writer, Math.min(64, length - word * 64), bitmap[word]);
         }
     }
 
-    protected synchronized void log(NullnessDataPoint pt, char result) {
+    protected void logBitMap(int length, long bitmap) throws IOException {
+        writeBitMap(outputWriter, length, bitmap);
+    }
+
+    protected void logBitMap(int length, long[] bitmap) throws IOException {
+        writeBitMap(outputWriter, length, bitmap);
+    }
+
+    // Write a bitmap of at most 128 values split into two words
+    static void writeBitMap(Writer writer, int length, long word0, long word1) throws IOException {
+        writeBitMap(writer, Math.min(64, length), word0);
+        if (length > 64) {
+            writeBitMap(writer, length - 64, word1);
+        }
+    }
+
+    // Sampled logs get an extra column with each event's weight
+    protected synchronized void log(int methodId, long fields, long parameters, char result, int weight) {
+        if (finished) {
+            return;
+        }
+        MethodRegistry.MethodInfo method = MethodRegistry.get(methodId);
         try {
-            outputWriter.append(pt.className);
-            outputWriter.append(',');
-            outputWriter.append(pt.methodName);
+            startRow(method);
+            logBitMap(method.numFields, fields);
             outputWriter.append(',');
-            logBitMap(pt.numFields, pt.fields);
+            logBitMap(method.numParameters, parameters);
+            endRow(result, weight);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Events of methods with 65 to 128 reftype fields or parameters, whose bitmaps are two words each (see logReturn).
+    // Every logger overrides this, so that the words needn't be put into arrays.
+    protected synchronized void log(int methodId, long fields0, long fields1, long parameters0, long parameters1,
+                                    char result, int weight) {
+        if (finished) {
+            return;
+        }
+        MethodRegistry.MethodInfo method = MethodRegistry.get(methodId);
+        try {
+            startRow(method);
+            writeBitMap(outputWriter, method.numFields, fields0, fields1);
             outputWriter.append(',');
-            logBitMap(pt.numParameters, pt.parameters);
+            writeBitMap(outputWriter, method.numParameters, parameters0, parameters1);
+            endRow(result, weight);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Events of methods with more than 128 reftype fields or parameters. Each bitmap has
+    // MethodStabilityTransformer.numWords(width) words.
+    protected synchronized void log(int methodId, long[] fields, long[] parameters, char result, int weight) {
+        if (finished) {
+            return;
+        }
+        MethodRegistry.MethodInfo method = MethodRegistry.get(methodId);
+        try {
+            startRow(method);
+            logBitMap(method.numFields, fields);
             outputWriter.append(',');
-            outputWriter.append(result);
-            outputWriter.append('\n');
+            logBitMap(method.numParameters, parameters);
+            endRow(result, weight);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    protected void finish() {
+    private void startRow(MethodRegistry.MethodInfo method) throws IOException {
+        outputWriter.append(method.className);
+        outputWriter.append(',');
+        outputWriter.append(method.methodName);
+        outputWriter.append(',');
+    }
+
+    private void endRow(char result, int weight) throws IOException {
+        outputWriter.append(',');
+        outputWriter.append(result);
+        if (NullnessSampler.isEnabled()) {
+            outputWriter.append(',');
+            outputWriter.append(Integer.toString(weight));
+        }
+        outputWriter.append('\n');
+    }
+
+    // When probes record a selection of fields, the method table in <outputFile>.methods says which field each bitmap
+    // position stands for
+    protected void writeFieldTable() throws IOException {
+        if (!fieldTable || outputFile == null) {
+            return;
+        }
+        try (Writer methodWriter = new BufferedWriter(new FileWriter(outputFile + ".methods"))) {
+            MethodRegistry.writeTable(methodWriter);
+        }
+    }
+
+    // Events logged but discarded so far, e.g. by an async logger whose buffers were full
+    protected long droppedCount() {
+        return 0;
+    }
+
+    protected synchronized void finish() {
+        finished = true;
         try {
             if (outputFile == null) {
                 // Don't close stdout!
                 outputWriter.flush();
             } else {
                 outputWriter.close();
+                writeFieldTable();
             }
         } catch (IOException e) {
             LOGGER.severe("An exception occurred while closing the NullnessLogger file " + outputFile);
@@ -84,6 +346,12 @@ public class NullnessLogger {
         }
     }
 
+    // java.util.logging resets its handlers in its own shutdown hook, so messages logged while finishing are usually
+    // lost. Use this for anything finish() needs the user to see.
+    static void report(String message) {
+        System.err.println("[type_stability] " + message);
+    }
+
     protected Thread getCleanupThread() {
         return new Thread(this::finish);
     }
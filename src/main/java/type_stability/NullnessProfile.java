@@ -0,0 +1,117 @@
+package type_stability;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// What an aggregate profile (--aggregate with or without --mergeable, or CheckpointMerger's or ProfileMerger's output)
+// says about each method, for MethodSpecializer: which of its reftype parameters, by position in the parameter bitmap,
+// were never null. Profiles with call sites are summed over their call sites.
+class NullnessProfile {
+    static class MethodProfile {
+        long events = 0;
+        boolean[] parameterNeverNull; // by position in the parameter bitmap
+    }
+
+    // Keyed by class::method + descriptor
+    private final Map<String, MethodProfile> methods = new HashMap<>();
+
+    private static String key(String className, String methodName, String descriptor) {
+        return className + "::" + methodName + descriptor;
+    }
+
+    MethodProfile get(String className, String methodName, String descriptor) {
+        return methods.get(key(className, methodName, descriptor));
+    }
+
+    int size() {
+        return methods.size();
+    }
+
+    static NullnessProfile load(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        if (lines.isEmpty()) {
+            throw new IOException(file + " is empty.");
+        }
+        if (lines.get(0).startsWith(ProfileFormat.MAGIC)) {
+            return loadMergeable(Paths.get(file));
+        }
+        String header = lines.get(0);
+        int methodColumn = header.startsWith("callsite,") ? 1 : 0;
+        if (!header.substring(header.indexOf("method,")).startsWith("method,fields,params,result,count")) {
+            throw new IOException(file + " isn't an aggregate profile.");
+        }
+
+        // The method table is either in its own file (for profiles written to stdout, whatever the agent wrote to
+        // stderr), or after a blank line at the end of this one
+        List<String> rows = lines.subList(1, lines.size());
+        List<String> table;
+        Path tableFile = Paths.get(NullnessAggregateLogger.methodTableFile(file));
+        if (Files.exists(tableFile)) {
+            table = Files.readAllLines(tableFile);
+        } else {
+            int blank = rows.indexOf("");
+            if (blank < 0) {
+                throw new IOException("No method table for " + file + ".");
+            }
+            table = rows.subList(blank + 1, rows.size());
+            rows = rows.subList(0, blank);
+        }
+        List<String> keys = new ArrayList<>();
+        for (String line : table.subList(1, table.size())) {
+            String[] cells = line.split(",");
+            int id = Integer.parseInt(cells[0]);
+            while (keys.size() <= id) {
+                keys.add(null);
+            }
+            keys.set(id, key(cells[1], cells[2], cells[3]));
+        }
+
+        NullnessProfile profile = new NullnessProfile();
+        for (String line : rows) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] cells = line.split(",", -1);
+            String key = keys.get(Integer.parseInt(cells[methodColumn]));
+            String parameters = cells[methodColumn + 2];
+            long count = Long.parseLong(cells[methodColumn + 4]);
+            profile.add(key, parameters, count);
+        }
+        return profile;
+    }
+
+    // A profile in the mergeable format (see ProfileFormat), which names its methods in every row
+    private static NullnessProfile loadMergeable(Path file) throws IOException {
+        NullnessProfile profile = new NullnessProfile();
+        try (ProfileFormat.Reader reader = new ProfileFormat.Reader(file)) {
+            int methodColumn = reader.header.callers ? 1 : 0;
+            while (reader.next()) {
+                String[] cells = reader.key().split(",", -1);
+                String key = key(cells[methodColumn], cells[methodColumn + 1], cells[methodColumn + 2]);
+                profile.add(key, cells[methodColumn + 5], reader.counts()[0]);
+            }
+        }
+        return profile;
+    }
+
+    private void add(String key, String parameters, long count) {
+        MethodProfile method = methods.computeIfAbsent(key, k -> new MethodProfile());
+        if (method.parameterNeverNull == null) {
+            method.parameterNeverNull = new boolean[parameters.length()];
+            Arrays.fill(method.parameterNeverNull, true);
+        }
+        for (int i = 0; i < parameters.length(); i++) {
+            if (parameters.charAt(i) == '0') {
+                method.parameterNeverNull[i] = false;
+            }
+        }
+        method.events += count;
+    }
+}
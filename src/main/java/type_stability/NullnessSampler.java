@@ -0,0 +1,130 @@
+package type_stability;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Decides which calls of an instrumented method are recorded. Instrumented methods call sample() before reading any
+// field or parameter, so a call which isn't recorded costs little more than the call to sample() itself. With
+// --overhead-budget, methods throttled by OverheadGovernor are never recorded.
+//
+// Every recorded event carries a weight: the number of calls it stands for. Summing weights instead of counting events
+// scales sampled counts back up.
+//
+// The per-method state is updated without synchronization. Concurrent callers of the same method may occasionally
+// lose an update, which only perturbs how often that method is sampled.
+public class NullnessSampler {
+    // Weights must fit the 24 bits the async logger has for them
+    static final int MAX_WEIGHT = (1 << 24) - 1;
+
+    // Record every `every`th call of each method. Counting per method keeps methods which are called in a fixed
+    // rotation from being aliased away.
+    private static int every = 1;
+    // Record each call with probability 1/random
+    private static int random = 1;
+    // Once a method has logged this many identical outcomes in a row, halve its sampling rate (0 disables)
+    private static int adaptiveThreshold = 0;
+
+    private static class State {
+        final int[] countdown; // calls left until the next recorded one
+        final int[] backoff; // log2 of the adaptive interval
+        final int[] streak; // identical outcomes in a row
+        final long[] lastOutcome; // 0 until the first outcome is observed
+
+        State(int capacity) {
+            countdown = new int[capacity];
+            backoff = new int[capacity];
+            streak = new int[capacity];
+            lastOutcome = new long[capacity];
+        }
+
+        State(State old, int capacity) {
+            countdown = Arrays.copyOf(old.countdown, capacity);
+            backoff = Arrays.copyOf(old.backoff, capacity);
+            streak = Arrays.copyOf(old.streak, capacity);
+            lastOutcome = Arrays.copyOf(old.lastOutcome, capacity);
+        }
+    }
+
+    private static volatile State state = new State(1024);
+
+    static void configure(int every, int random, int adaptiveThreshold) {
+        if (every < 1 || random < 1 || (long) every * random > MAX_WEIGHT || adaptiveThreshold < 0) {
+            throw new IllegalArgumentException("Sampling intervals must be positive, with a product of at most " +
+                    MAX_WEIGHT + ".");
+        }
+        NullnessSampler.every = every;
+        NullnessSampler.random = random;
+        NullnessSampler.adaptiveThreshold = adaptiveThreshold;
+    }
+
+    static boolean isEnabled() {
+        return every > 1 || random > 1 || adaptiveThreshold > 0;
+    }
+
+    static boolean isAdaptive() {
+        return adaptiveThreshold > 0;
+    }
+
+    private static State state(int methodId) {
+        State s = state;
+        if (methodId < s.countdown.length) {
+            return s;
+        }
+        synchronized (NullnessSampler.class) {
+            s = state;
+            if (methodId >= s.countdown.length) {
+                s = new State(s, Math.max(s.countdown.length * 2, methodId + 1));
+                state = s;
+            }
+            return s;
+        }
+    }
+
+    // Returns 0 if this call shouldn't be recorded, or else the weight of the event it records.
+    public static int sample(int methodId) {
+        if (!OverheadGovernor.isEnabled()) {
+            return decide(methodId);
+        }
+        if (!OverheadGovernor.enter(methodId)) {
+            return 0;
+        }
+        int weight = decide(methodId);
+        if (weight != 0) {
+            OverheadGovernor.recorded(methodId);
+        }
+        return weight;
+    }
+
+    private static int decide(int methodId) {
+        int weight = 1;
+        if (random > 1) {
+            if (ThreadLocalRandom.current().nextInt(random) != 0) {
+                return 0;
+            }
+            weight = random;
+        }
+        State s = state(methodId);
+        if (--s.countdown[methodId] > 0) {
+            return 0;
+        }
+        int interval = every << s.backoff[methodId];
+        s.countdown[methodId] = interval;
+        return weight * interval; // at most MAX_WEIGHT; see observe()
+    }
+
+    // Called with each recorded outcome when adaptive sampling is on. Backs off exponentially while a method keeps
+    // logging the same outcome, and goes back to the base rate as soon as it logs a different one.
+    static void observe(int methodId, long fields, long parameters, char result) {
+        long outcome = (fields * 0x9E3779B97F4A7C15L ^ parameters) * 31 + result | 1; // never 0
+        State s = state(methodId);
+        if (s.lastOutcome[methodId] != outcome) {
+            s.lastOutcome[methodId] = outcome;
+            s.streak[methodId] = 0;
+            s.backoff[methodId] = 0;
+        } else if (++s.streak[methodId] >= adaptiveThreshold
+                && ((long) random * every << (s.backoff[methodId] + 1)) <= MAX_WEIGHT) {
+            s.streak[methodId] = 0;
+            s.backoff[methodId]++;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package type_stability;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+// Aggregates events in a fixed amount of memory, for programs with too many distinct (fields, params, result)
+// combinations to count exactly. Every event updates two structures:
+//   - a count-min sketch of all combinations: DEPTH rows of `width` counters, one per row incremented per event. A
+//     combination's estimate is the minimum of its counters, which exceeds its count by at most e * N / width (N events
+//     in total) with probability 1 - e^-DEPTH.
+//   - a Space-Saving summary of the topK most frequent combinations of all methods. An untracked combination replaces
+//     the least frequent tracked one and inherits its count as error, so a tracked count is at most error too high.
+// Only tracked combinations are written, by method, each with the tighter of the two upper bounds:
+//   method,fields,params,result,count,error[,estimate]
+// The true count is in [count - error, count], and estimate is the sum of the events' weights when sampling (inherited
+// like the count on replacement). The first line describes the count-min bound.
+//
+// Like NullnessAggregateLogger, each thread logs to its own sketch and summary, without locks or atomics, and they are
+// only merged in finish(). Those of dead threads are folded into a retired pair as new threads register, so memory is
+// bounded by (live threads + 1) * (DEPTH * width counters + topK entries), whatever the number of methods.
+public class NullnessSketchLogger extends NullnessLogger {
+    private static final Logger LOGGER = Logger.getLogger(NullnessSketchLogger.class.getName());
+
+    private static final int DEPTH = 4;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+            0xD6E8FEB86659FD93L};
+
+    // Set by configure() before the logger is created
+    private static int topK = 1024;
+    private static int width = 1 << 14;
+
+    static void configure(int topK, int width) {
+        if (topK < 1 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("--top-k must be positive and --sketch-width a power of two.");
+        }
+        NullnessSketchLogger.topK = topK;
+        NullnessSketchLogger.width = width;
+    }
+
+    // One tracked combination of a Summary. Narrow methods use fields and parameters; methods with more than 64
+    // reftype fields or parameters use wideFields and wideParameters. The key is final, so that finish() sees it
+    // whole even while the owner is still logging; a replaced combination gets a new Entry.
+    private static class Entry {
+        final long hash;
+        final int methodId;
+        final long fields;
+        final long parameters;
+        final long[] wideFields;
+        final long[] wideParameters;
+        final char result;
+        long count;
+        long error;
+        long weight;
+        int heapIndex;
+
+        Entry(long hash, int methodId, long fields, long parameters, long[] wideFields, long[] wideParameters,
+              char result) {
+            this.hash = hash;
+            this.methodId = methodId;
+            this.fields = fields;
+            this.parameters = parameters;
+            this.wideFields = wideFields;
+            this.wideParameters = wideParameters;
+            this.result = result;
+        }
+
+        boolean matches(long hash, int methodId, long fields, long parameters, long[] wideFields,
+                        long[] wideParameters, char result) {
+            return this.hash == hash && this.methodId == methodId && this.result == result && this.fields == fields
+                    && this.parameters == parameters && Arrays.equals(this.wideFields, wideFields)
+                    && Arrays.equals(this.wideParameters, wideParameters);
+        }
+
+        Entry copyKey() {
+            return new Entry(hash, methodId, fields, parameters, wideFields, wideParameters, result);
+        }
+
+        // Only used to merge summaries, on copies
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry e = (Entry) o;
+            return e.matches(hash, methodId, fields, parameters, wideFields, wideParameters, result);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash);
+        }
+    }
+
+    // A Space-Saving summary of at most `capacity` combinations. The entries are both in a min-heap by count, so the
+    // least frequent one is found in O(1), and in an open-addressing table by hash, so lookups don't scan them.
+    // Written by one thread only.
+    private static class Summary {
+        final Entry[] heap;
+        int size = 0;
+        final Entry[] slots;
+
+        Summary(int capacity) {
+            heap = new Entry[capacity];
+            slots = new Entry[Integer.highestOneBit(capacity) * 4];
+        }
+
+        void add(long hash, int methodId, long fields, long parameters, long[] wideFields, long[] wideParameters,
+                 char result, int weight) {
+            Entry e = find(hash, methodId, fields, parameters, wideFields, wideParameters, result);
+            e.count++;
+            e.weight += weight;
+            siftDown(e.heapIndex);
+        }
+
+        // The tracked entry for this combination, replacing the least frequent one if it isn't tracked yet
+        private Entry find(long hash, int methodId, long fields, long parameters, long[] wideFields,
+                           long[] wideParameters, char result) {
+            int mask = slots.length - 1;
+            for (int i = (int) hash & mask; slots[i] != null; i = (i + 1) & mask) {
+                if (slots[i].matches(hash, methodId, fields, parameters, wideFields, wideParameters, result)) {
+                    return slots[i];
+                }
+            }
+            Entry e = new Entry(hash, methodId, fields, parameters, wideFields, wideParameters, result);
+            if (size < heap.length) {
+                insert(e);
+                return e;
+            }
+            Entry min = heap[0];
+            remove(min);
+            e.count = min.count;
+            e.error = min.count;
+            e.weight = min.weight;
+            e.heapIndex = 0;
+            heap[0] = e;
+            put(e);
+            return e;
+        }
+
+        void insert(Entry e) {
+            e.heapIndex = size;
+            heap[size++] = e;
+            siftUp(e.heapIndex);
+            put(e);
+        }
+
+        private void put(Entry e) {
+            int mask = slots.length - 1;
+            int i = (int) e.hash & mask;
+            while (slots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = e;
+        }
+
+        private void remove(Entry e) {
+            int mask = slots.length - 1;
+            int i = (int) e.hash & mask;
+            while (slots[i] != e) {
+                i = (i + 1) & mask;
+            }
+            // Move later entries of the probe run back into the hole, unless that would put them before their home slot
+            for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+                int home = (int) slots[j].hash & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    slots[i] = slots[j];
+                    i = j;
+                }
+            }
+            slots[i] = null;
+        }
+
+        private void siftUp(int i) {
+            Entry e = heap[i];
+            while (i > 0 && heap[(i - 1) / 2].count > e.count) {
+                move(heap[(i - 1) / 2], i);
+                i = (i - 1) / 2;
+            }
+            move(e, i);
+        }
+
+        private void siftDown(int i) {
+            Entry e = heap[i];
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                    child++;
+                }
+                if (heap[child].count >= e.count) {
+                    break;
+                }
+                move(heap[child], i);
+                i = child;
+            }
+            move(e, i);
+        }
+
+        private void move(Entry e, int i) {
+            heap[i] = e;
+            e.heapIndex = i;
+        }
+
+        // The entries as of now, each once even if the owner is moving them around the heap meanwhile
+        List<Entry> snapshot() {
+            Set<Entry> entries = Collections.newSetFromMap(new IdentityHashMap<>());
+            int n = Math.min(size, heap.length);
+            for (int i = 0; i < n; i++) {
+                if (heap[i] != null) {
+                    entries.add(heap[i]);
+                }
+            }
+            return new ArrayList<>(entries);
+        }
+    }
+
+    // Merges Space-Saving summaries into one of topK entries, as in Agarwal et al., "Mergeable Summaries": a
+    // combination a full summary doesn't track may have occurred up to its minimum count there, so that minimum is
+    // added to both the count and the error. The bounds of the merged summary hold like those of the parts.
+    private static Summary merge(List<Summary> parts) {
+        Map<Entry, Entry> union = new HashMap<>();
+        long minimums = 0;
+        for (Summary s : parts) {
+            List<Entry> entries = s.snapshot();
+            long min = 0;
+            if (entries.size() == s.heap.length) {
+                min = Long.MAX_VALUE;
+                for (Entry e : entries) {
+                    min = Math.min(min, e.count);
+                }
+            }
+            minimums += min;
+            for (Entry e : entries) {
+                Entry merged = union.computeIfAbsent(e, Entry::copyKey);
+                merged.count += e.count - min;
+                merged.error += e.error - min;
+                merged.weight += e.weight;
+            }
+        }
+        List<Entry> entries = new ArrayList<>(union.values());
+        for (Entry e : entries) {
+            e.count += minimums;
+            e.error += minimums;
+        }
+        entries.sort(Comparator.comparingLong((Entry e) -> e.count).reversed());
+        Summary result = new Summary(topK);
+        for (int i = 0; i < Math.min(topK, entries.size()); i++) {
+            result.insert(entries.get(i));
+        }
+        return result;
+    }
+
+    // What one thread has logged
+    private static class ThreadSketch {
+        final Thread owner;
+        final long[] counters = new long[DEPTH * width];
+        final Summary summary = new Summary(topK);
+        long numEvents;
+
+        ThreadSketch(Thread owner) {
+            this.owner = owner;
+        }
+    }
+
+    private final ThreadLocal<ThreadSketch> sketches = ThreadLocal.withInitial(this::register);
+    // Sketches of threads which have logged something. Guarded by this.
+    private final List<ThreadSketch> liveSketches = new ArrayList<>();
+    // Counts merged from the sketches of threads which have died. Guarded by this.
+    private final ThreadSketch retired = new ThreadSketch(null);
+    private Summary retiredSummary = retired.summary;
+    private int sweepThreshold = 16;
+
+    protected NullnessSketchLogger(String outputFile) throws IOException {
+        super(outputFile);
+    }
+
+    // Called once per thread, on its first event
+    private synchronized ThreadSketch register() {
+        if (liveSketches.size() >= sweepThreshold) {
+            List<Summary> summaries = new ArrayList<>();
+            summaries.add(retiredSummary);
+            Iterator<ThreadSketch> it = liveSketches.iterator();
+            while (it.hasNext()) {
+                ThreadSketch t = it.next();
+                if (!t.owner.isAlive()) {
+                    addCounters(retired, t);
+                    summaries.add(t.summary);
+                    it.remove();
+                }
+            }
+            if (summaries.size() > 1) {
+                retiredSummary = merge(summaries);
+            }
+            sweepThreshold = Math.max(16, liveSketches.size() * 2);
+        }
+        ThreadSketch sketch = new ThreadSketch(Thread.currentThread());
+        liveSketches.add(sketch);
+        return sketch;
+    }
+
+    private static void addCounters(ThreadSketch into, ThreadSketch from) {
+        for (int i = 0; i < into.counters.length; i++) {
+            into.counters[i] += from.counters[i];
+        }
+        into.numEvents += from.numEvents;
+    }
+
+    private static long hash(int methodId, long fields, long parameters, char result) {
+        long h = ((long) methodId << 8 | result) * 0x9E3779B97F4A7C15L;
+        h = (h ^ fields) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ parameters) * 0x165667B19E3779F9L;
+        return h ^ (h >>> 29);
+    }
+
+    private static long hash(long[] bitmap) {
+        long h = 0;
+        for (long word : bitmap) {
+            h = (h ^ word) * 0x9E3779B97F4A7C15L;
+        }
+        return h;
+    }
+
+    private static int index(long hash, int row) {
+        long h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        return row * width + ((int) (h >>> 32) & (width - 1));
+    }
+
+    private static void add(ThreadSketch sketch, long hash) {
+        for (int row = 0; row < DEPTH; row++) {
+            sketch.counters[index(hash, row)]++;
+        }
+        sketch.numEvents++;
+    }
+
+    private static long estimate(long[] counters, long hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters[index(hash, row)]);
+        }
+        return min;
+    }
+
+    @Override
+    protected void log(int methodId, long fields, long parameters, char result, int weight) {
+        ThreadSketch sketch = sketches.get();
+        long hash = hash(methodId, fields, parameters, result);
+        add(sketch, hash);
+        sketch.summary.add(hash, methodId, fields, parameters, null, null, result, weight);
+    }
+
+    @Override
+    protected void log(int methodId, long fields0, long fields1, long parameters0, long parameters1, char result,
+                       int weight) {
+        log(methodId, words(methodId, true, fields0, fields1), words(methodId, false, parameters0, parameters1),
+                result, weight);
+    }
+
+    // The probes allocate fresh bitmaps for every event, so entries can keep them.
+    @Override
+    protected void log(int methodId, long[] fields, long[] parameters, char result, int weight) {
+        ThreadSketch sketch = sketches.get();
+        long hash = hash(methodId, hash(fields), hash(parameters), result);
+        add(sketch, hash);
+        sketch.summary.add(hash, methodId, 0, 0, fields, parameters, result, weight);
+    }
+
+    @Override
+    protected synchronized void finish() {
+        // Counts of every thread as of now, without stopping them
+        ThreadSketch total = new ThreadSketch(null);
+        addCounters(total, retired);
+        List<Summary> summaries = new ArrayList<>();
+        summaries.add(retiredSummary);
+        for (ThreadSketch t : liveSketches) {
+            addCounters(total, t);
+            summaries.add(t.summary);
+        }
+        List<Entry> entries = merge(summaries).snapshot();
+        entries.sort(Comparator.comparingInt((Entry e) -> e.methodId)
+                .thenComparing(Comparator.comparingLong((Entry e) -> e.count).reversed()));
+
+        long n = total.numEvents;
+        try {
+            outputWriter.append(String.format("# count-min width=%d depth=%d events=%d: estimates exceed true counts " +
+                    "by at most %d with probability %.3f\n", width, DEPTH, n, (long) Math.ceil(Math.E * n / width),
+                    1 - Math.exp(-DEPTH)));
+            outputWriter.append(NullnessSampler.isEnabled()
+                    ? "method,fields,params,result,count,error,estimate\n"
+                    : "method,fields,params,result,count,error\n");
+            for (Entry e : entries) {
+                writeEntry(MethodRegistry.get(e.methodId), e, estimate(total.counters, e.hash));
+            }
+
+            // The method table is written once, alongside the counts
+            if (outputFile == null) {
+                // Don't close stdout!
+                outputWriter.flush();
+                NullnessAggregateLogger.writeMethodTableToStderr();
+            } else {
+                outputWriter.close();
+                NullnessAggregateLogger.writeMethodTable(outputFile);
+            }
+        } catch (IOException e) {
+            LOGGER.severe("An exception occurred while closing the NullnessSketchLogger file " + outputFile);
+            LOGGER.severe(e.getMessage());
+        }
+    }
+
+    private void writeEntry(MethodRegistry.MethodInfo method, Entry e, long cms) throws IOException {
+        long upper = Math.min(e.count, cms);
+        long lower = e.count - e.error;
+        outputWriter.append(Integer.toString(method.id));
+        outputWriter.append(',');
+        if (e.wideFields == null) {
+            logBitMap(method.numFields, e.fields);
+            outputWriter.append(',');
+            logBitMap(method.numParameters, e.parameters);
+        } else {
+            logBitMap(method.numFields, e.wideFields);
+            outputWriter.append(',');
+            logBitMap(method.numParameters, e.wideParameters);
+        }
+        outputWriter.append(',');
+        outputWriter.append(e.result);
+        outputWriter.append(',');
+        outputWriter.append(Long.toString(upper));
+        outputWriter.append(',');
+        outputWriter.append(Long.toString(Math.max(0, upper - lower)));
+        if (NullnessSampler.isEnabled()) {
+            outputWriter.append(',');
+            outputWriter.append(Long.toString(e.weight));
+        }
+        outputWriter.append('\n');
+    }
+}
@@ -0,0 +1,246 @@
+package type_stability;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+// Instruments jars ahead of time, so that the JVM doesn't have to run the transformer (and load ASM) at every start.
+// Classes are transformed in parallel on a fork-join pool by the same TypeStabilityTransformer the agent uses, so the
+// agent arguments which affect the bytecode (-p, --aggregate etc., sampling, -d, --validate) mean the same thing.
+//
+// Writes outputDirectory/<jar name> for each input jar, and the method table the instrumented classes refer to as a
+// PersistentMethodTable in outputDirectory/methods. An existing table is appended to, so jars instrumented in separate
+// runs can share it. Run the instrumented jars with -javaagent:TypeStabilityAgent.jar="... --methods <table>", which
+// loads the table and installs no transformer.
+//
+// Usage: java -cp TypeStabilityAgent.jar type_stability.OfflineInstrumenter "agentArgs" outputDirectory jar...
+public class OfflineInstrumenter {
+    private static final Logger LOGGER = Logger.getLogger(OfflineInstrumenter.class.getName());
+
+    private static final String VERSIONS = "META-INF/versions/";
+
+    // One jar entry: its original bytes, replaced by the instrumented class if there is one
+    private static class Entry {
+        final ZipEntry zipEntry;
+        byte[] bytes;
+
+        Entry(ZipEntry zipEntry, byte[] bytes) {
+            this.zipEntry = zipEntry;
+            this.bytes = bytes;
+        }
+    }
+
+    // Transforms entries[start, end), splitting the range until it's small enough
+    @SuppressWarnings("serial") // never serialized
+    private static class TransformTask extends RecursiveAction {
+        private static final int THRESHOLD = 16;
+
+        private final TypeStabilityTransformer transformer;
+        private final ClassLoader loader;
+        private final List<Entry> entries;
+        private final int start;
+        private final int end;
+
+        TransformTask(TypeStabilityTransformer transformer, ClassLoader loader, List<Entry> entries, int start,
+                      int end) {
+            this.transformer = transformer;
+            this.loader = loader;
+            this.entries = entries;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > THRESHOLD) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new TransformTask(transformer, loader, entries, start, middle),
+                        new TransformTask(transformer, loader, entries, middle, end));
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                Entry entry = entries.get(i);
+                String className = className(entry.zipEntry.getName());
+                if (className == null) {
+                    continue;
+                }
+                try {
+                    byte[] result = transformer.transform(loader, className, null, null, entry.bytes);
+                    if (result != null) {
+                        entry.bytes = result;
+                    }
+                } catch (IllegalClassFormatException | RuntimeException e) {
+                    // Like the JVM, keep the original class
+                    LOGGER.log(Level.WARNING, "Could not instrument " + className + "; copying it unchanged:", e);
+                }
+            }
+        }
+    }
+
+    // Instruments one jar's classes, then writes the jar. Jars are written in parallel too, since deflating their
+    // entries takes about as long as instrumenting them.
+    @SuppressWarnings("serial") // never serialized
+    private static class JarTask extends RecursiveAction {
+        private final TypeStabilityTransformer transformer;
+        private final ClassLoader loader;
+        private final List<Entry> entries;
+        private final Path output;
+
+        JarTask(TypeStabilityTransformer transformer, ClassLoader loader, List<Entry> entries, Path output) {
+            this.transformer = transformer;
+            this.loader = loader;
+            this.entries = entries;
+            this.output = output;
+        }
+
+        @Override
+        protected void compute() {
+            new TransformTask(transformer, loader, entries, 0, entries.size()).invoke();
+            try {
+                writeJar(output, entries);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write " + output + ".", e);
+            }
+        }
+    }
+
+    // The internal name of the class in a jar entry, or null if it isn't a class
+    static String className(String entryName) {
+        if (!entryName.endsWith(".class") || entryName.endsWith("module-info.class")) {
+            return null;
+        }
+        String name = entryName.substring(0, entryName.length() - ".class".length());
+        if (name.startsWith(VERSIONS)) {
+            // Multi-release jars keep classes for newer JVMs in META-INF/versions/<n>/
+            int slash = name.indexOf('/', VERSIONS.length());
+            name = slash >= 0 ? name.substring(slash + 1) : name;
+        }
+        return name;
+    }
+
+    // Signatures no longer match once classes are instrumented
+    private static boolean isSignature(String entryName) {
+        String name = entryName.toUpperCase();
+        return name.startsWith("META-INF/") && name.indexOf('/', "META-INF/".length()) < 0 &&
+                (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC"));
+    }
+
+    private static List<Entry> readJar(Path jar) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry zipEntry = e.nextElement();
+                if (isSignature(zipEntry.getName())) {
+                    LOGGER.warning("Dropping signature " + zipEntry.getName() + " from " + jar + ".");
+                    continue;
+                }
+                try (InputStream in = zip.getInputStream(zipEntry)) {
+                    entries.add(new Entry(zipEntry, in.readAllBytes()));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static void writeJar(Path jar, List<Entry> entries) throws IOException {
+        try (OutputStream out = Files.newOutputStream(jar); ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Entry entry : entries) {
+                ZipEntry zipEntry = new ZipEntry(entry.zipEntry.getName());
+                zipEntry.setTime(entry.zipEntry.getTime());
+                zip.putNextEntry(zipEntry);
+                zip.write(entry.bytes);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: OfflineInstrumenter \"agentArgs\" outputDirectory jar...");
+            System.exit(1);
+        }
+        Config conf = Config.parse(args[0]);
+        if (conf.cacheDirectory != null || conf.methodTable != null || conf.callSites ||
+                conf.specializeProfile != null) {
+            throw new IllegalArgumentException("-c, --methods, --call-sites and --specialize can't be used when " +
+                    "instrumenting jars.");
+        }
+        Path outputDirectory = Paths.get(args[1]);
+        Files.createDirectories(outputDirectory);
+        List<Path> jars = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            Path jar = Paths.get(args[i]);
+            if (outputDirectory.resolve(jar.getFileName()).toAbsolutePath().equals(jar.toAbsolutePath())) {
+                throw new IllegalArgumentException("Refusing to overwrite " + jar + " with its instrumented version.");
+            }
+            jars.add(jar);
+        }
+        // Opened exclusively, so that the workers assign IDs without touching the file; see PersistentMethodTable
+        PersistentMethodTable table = new PersistentMethodTable(outputDirectory.resolve("methods"), true);
+        try {
+            MethodRegistry.persist(table);
+            instrument(conf, outputDirectory, jars);
+        } finally {
+            // Even after a failure, so that the table covers whatever jars were written
+            table.close();
+        }
+    }
+
+    private static void instrument(Config conf, Path outputDirectory, List<Path> jars) throws IOException {
+        TransformStats.configure(conf.timingsFile);
+        TypeStabilityTransformer transformer = new TypeStabilityTransformer(conf);
+        long start = System.nanoTime();
+
+        // Read every jar first, so that HierarchyClassWriter can find the superclasses of classes in other jars. It
+        // finds those of JDK classes through the class loader.
+        List<List<Entry>> contents = new ArrayList<>();
+        URL[] urls = new URL[jars.size()];
+        for (int i = 0; i < jars.size(); i++) {
+            List<Entry> entries = readJar(jars.get(i));
+            for (Entry entry : entries) {
+                if (className(entry.zipEntry.getName()) != null) {
+                    HierarchyClassWriter.index(entry.bytes);
+                }
+            }
+            contents.add(entries);
+            urls[i] = jars.get(i).toUri().toURL();
+        }
+
+        try (URLClassLoader loader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader())) {
+            List<JarTask> tasks = new ArrayList<>();
+            for (int i = 0; i < jars.size(); i++) {
+                tasks.add(new JarTask(transformer, loader, contents.get(i),
+                        outputDirectory.resolve(jars.get(i).getFileName())));
+            }
+            ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+        NullnessLogger.report("Instrumented " + TransformStats.numMethods.get() + " methods in " +
+                TransformStats.numClasses.get() + " classes of " + jars.size() + " jars in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms; method table in " +
+                outputDirectory.resolve("methods") + ".");
+    }
+}
@@ -0,0 +1,332 @@
+package type_stability;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+// With --overhead-budget percent, keeps the estimated cost of the probes under that share of the process's CPU time
+// by switching off recording for the methods which cost the most. Probes are then sampled (see Config.isSampled), and
+// NullnessSampler.sample asks enter() first, which counts the call and checks the method's enabled flag.
+//
+// A method's cost is estimated as the events it has recorded times the cost of an event, calibrated at startup by timing
+// synthetic probes. The synthetic events go to an AggregateTable, like --aggregate's; the other loggers cost more per
+// event, so the estimate is a lower bound for them. Checking the flag (calibrated likewise) can't be switched off, so it
+// isn't held against the budget, but it is reported (except for throttled methods, whose calls are no longer counted).
+// Every second, if recording in the last second was over budget, the costliest methods are throttled until the rest
+// fit. Throttled methods stay throttled, since a throttled method's cost says nothing about its cost when enabled.
+//
+// Probes count calls and events in per-thread arrays, so that the hottest methods don't contend on shared counters;
+// the governor sums them every second.
+public class OverheadGovernor {
+    private static final Logger LOGGER = Logger.getLogger(OverheadGovernor.class.getName());
+
+    private static final long INTERVAL_MILLIS = 1000;
+    private static final int CALIBRATION_EVENTS = 1 << 16;
+    private static final int CALIBRATION_RUNS = 20;
+
+    // One thread's counts by method ID. Only its thread writes them; the governor reads them unsynchronized, so it may
+    // see slightly stale counts, which only perturbs an estimate.
+    private static class Counters {
+        final Thread thread;
+        volatile long[] calls = new long[64];
+        volatile long[] events = new long[64];
+
+        Counters(Thread thread) {
+            this.thread = thread;
+        }
+
+        static long[] grow(long[] counts, int methodId) {
+            return Arrays.copyOf(counts, Math.max(counts.length * 2, methodId + 1));
+        }
+    }
+
+    private static class Throttled {
+        final int methodId;
+        final long afterMillis;
+        final String reason;
+
+        Throttled(int methodId, long afterMillis, String reason) {
+            this.methodId = methodId;
+            this.afterMillis = afterMillis;
+            this.reason = reason;
+        }
+    }
+
+    private static boolean enabled = false;
+    private static double budget; // as a fraction of CPU time
+    private static double checkNanos;
+    private static double eventNanos;
+    private static volatile boolean[] throttledFlags = new boolean[1024];
+    private static final ThreadLocal<Counters> counters = ThreadLocal.withInitial(OverheadGovernor::newCounters);
+    // Guarded by OverheadGovernor.class
+    private static final List<Counters> allCounters = new ArrayList<>();
+    // The summed counts of threads which have ended
+    private static long[] retiredCalls = new long[0];
+    private static long[] retiredEvents = new long[0];
+    private static final List<Throttled> throttled = new ArrayList<>();
+    private static double checkingNanos = 0;
+    private static double recordingNanos = 0;
+    private static long totalCpuNanos = 0;
+
+    static void configure(double budgetPercent, String logFile) {
+        if (budgetPercent <= 0) {
+            return;
+        }
+        budget = budgetPercent / 100;
+        calibrate();
+        enabled = true;
+        Thread t = new Thread(OverheadGovernor::governLoop, "type-stability-governor");
+        t.setDaemon(true);
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> report(logFile)));
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    private static synchronized Counters newCounters() {
+        Counters c = new Counters(Thread.currentThread());
+        allCounters.add(c);
+        return c;
+    }
+
+    private static boolean isThrottled(int methodId) {
+        boolean[] flags = throttledFlags;
+        return methodId < flags.length && flags[methodId];
+    }
+
+    // Called at the top of every probe; returns whether the method may record this call. Throttled methods' calls
+    // aren't counted, so they cost only this check.
+    static boolean enter(int methodId) {
+        if (isThrottled(methodId)) {
+            return false;
+        }
+        Counters c = counters.get();
+        long[] calls = c.calls;
+        if (methodId >= calls.length) {
+            c.calls = calls = Counters.grow(calls, methodId);
+        }
+        calls[methodId]++;
+        return true;
+    }
+
+    // Called for each call NullnessSampler decided to record
+    static void recorded(int methodId) {
+        Counters c = counters.get();
+        long[] events = c.events;
+        if (methodId >= events.length) {
+            c.events = events = Counters.grow(events, methodId);
+        }
+        events[methodId]++;
+    }
+
+    private static synchronized void throttle(int methodId) {
+        boolean[] flags = throttledFlags;
+        if (methodId >= flags.length) {
+            flags = Arrays.copyOf(flags, Math.max(flags.length * 2, methodId + 1));
+        }
+        flags[methodId] = true;
+        throttledFlags = flags;
+    }
+
+    // The counts of all threads so far, for the first n method IDs. Ended threads' counts are folded into the retired
+    // counts, so that thread churn doesn't keep their arrays around; once isAlive() is false, their counts are final.
+    private static synchronized long[][] sumCounts(int n) {
+        retiredCalls = Arrays.copyOf(retiredCalls, Math.max(retiredCalls.length, n));
+        retiredEvents = Arrays.copyOf(retiredEvents, Math.max(retiredEvents.length, n));
+        allCounters.removeIf(c -> {
+            if (c.thread.isAlive()) {
+                return false;
+            }
+            add(retiredCalls, c.calls);
+            add(retiredEvents, c.events);
+            return true;
+        });
+        long[] calls = Arrays.copyOf(retiredCalls, n);
+        long[] events = Arrays.copyOf(retiredEvents, n);
+        for (Counters c : allCounters) {
+            add(calls, c.calls);
+            add(events, c.events);
+        }
+        return new long[][]{calls, events};
+    }
+
+    private static void add(long[] sum, long[] counts) {
+        for (int id = 0; id < Math.min(sum.length, counts.length); id++) {
+            sum[id] += counts[id];
+        }
+    }
+
+    // The file throttled methods are listed in, when the profile is written to logFile
+    static String throttledFile(String logFile) {
+        return logFile + ".throttled";
+    }
+
+    // Time enter() and a synthetic event on a few keys. The fastest of several runs is taken, once they're compiled.
+    private static void calibrate() {
+        checkNanos = Double.MAX_VALUE;
+        eventNanos = Double.MAX_VALUE;
+        for (int run = 0; run < CALIBRATION_RUNS; run++) {
+            long start = System.nanoTime();
+            calibrateChecks();
+            long checked = System.nanoTime();
+            calibrateEvents(new AggregateTable(Thread.currentThread()));
+            long recorded = System.nanoTime();
+            checkNanos = Math.min(checkNanos, (double) (checked - start) / CALIBRATION_EVENTS);
+            eventNanos = Math.min(eventNanos, (double) (recorded - checked) / CALIBRATION_EVENTS);
+        }
+        // Forget the synthetic counts
+        synchronized (OverheadGovernor.class) {
+            allCounters.remove(counters.get());
+        }
+        counters.remove();
+        LOGGER.info(String.format(Locale.ROOT, "Calibrated probes at %.1f ns per call and %.1f ns per event.",
+                checkNanos, eventNanos));
+    }
+
+    private static void calibrateChecks() {
+        for (int i = 0; i < CALIBRATION_EVENTS; i++) {
+            enter(i & 15);
+        }
+    }
+
+    // What a recorded call adds: computing a bitmap, and counting the event
+    private static void calibrateEvents(AggregateTable table) {
+        Object[] values = {"", null, 1, null};
+        for (int i = 0; i < CALIBRATION_EVENTS; i++) {
+            values[i & 3] = (i & 4) == 0 ? null : values;
+            long bitmap = 0;
+            for (Object v : values) {
+                bitmap = bitmap << 1 | (v == null ? 0 : 1);
+            }
+            recorded(i & 15);
+            table.increment(Long.MIN_VALUE | (i & 15) << 8 | '1', bitmap, bitmap >>> 1, 1, 1);
+        }
+    }
+
+    // CPU time of the whole process, or wall time per processor where the JVM doesn't say
+    private static long cpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long nanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            if (nanos >= 0) {
+                return nanos;
+            }
+        }
+        return System.nanoTime() * Runtime.getRuntime().availableProcessors();
+    }
+
+    private static void governLoop() {
+        long startNanos = System.nanoTime();
+        long lastCpu = cpuNanos();
+        long[] lastCalls = new long[0];
+        long[] lastEvents = new long[0];
+        try {
+            while (true) {
+                Thread.sleep(INTERVAL_MILLIS);
+                int n = MethodRegistry.size();
+                long[][] counts = sumCounts(n);
+                long[] calls = counts[0];
+                long[] events = counts[1];
+                long cpu = cpuNanos();
+                govern(calls, Arrays.copyOf(lastCalls, n), events, Arrays.copyOf(lastEvents, n), cpu - lastCpu,
+                        (System.nanoTime() - startNanos) / 1_000_000);
+                lastCalls = calls;
+                lastEvents = events;
+                lastCpu = cpu;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Throttle the costliest methods of the last interval until the rest fit the budget
+    private static synchronized void govern(long[] calls, long[] lastCalls, long[] events, long[] lastEvents,
+                                            long cpuNanos, long afterMillis) {
+        int n = calls.length;
+        double[] cost = new double[n];
+        double total = 0;
+        for (int id = 0; id < n; id++) {
+            cost[id] = (events[id] - lastEvents[id]) * eventNanos;
+            checkingNanos += (calls[id] - lastCalls[id]) * checkNanos;
+            recordingNanos += cost[id];
+            // Events of throttled methods counted since the last interval were recorded before they were throttled;
+            // they're reported, but can't be helped, so they don't count against the budget
+            if (isThrottled(id)) {
+                cost[id] = 0;
+            }
+            total += cost[id];
+        }
+        totalCpuNanos += cpuNanos;
+        double allowed = budget * cpuNanos;
+        if (total <= allowed) {
+            return;
+        }
+        Integer[] byCost = new Integer[n];
+        for (int id = 0; id < n; id++) {
+            byCost[id] = id;
+        }
+        Arrays.sort(byCost, (a, b) -> Double.compare(cost[b], cost[a]));
+        double overheadPercent = 100 * total / cpuNanos;
+        for (int id : byCost) {
+            if (total <= allowed || cost[id] == 0) {
+                break;
+            }
+            throttle(id);
+            total -= cost[id];
+            String reason = String.format(Locale.ROOT,
+                    "recording %d events took %.1f%% of CPU time; all recording took %.1f%% against a budget of %.1f%%",
+                    events[id] - lastEvents[id], 100 * cost[id] / cpuNanos, overheadPercent, 100 * budget);
+            throttled.add(new Throttled(id, afterMillis, reason));
+            MethodRegistry.MethodInfo method = MethodRegistry.get(id);
+            LOGGER.info("Throttled " + method.className + "." + method.methodName + method.descriptor + ": " + reason);
+        }
+    }
+
+    private static synchronized void report(String logFile) {
+        if (totalCpuNanos > 0) {
+            NullnessLogger.report(String.format(Locale.ROOT, "Probes took an estimated %.1f%% of CPU time recording " +
+                    "and %.1f%% checking whether to record.", 100 * recordingNanos / totalCpuNanos,
+                    100 * checkingNanos / totalCpuNanos));
+        }
+        if (throttled.isEmpty()) {
+            NullnessLogger.report("No methods were throttled to stay under the overhead budget.");
+            return;
+        }
+        StringBuilder message = new StringBuilder("Throttled " + throttled.size() +
+                " methods to stay under the overhead budget; their profiles are incomplete:");
+        for (Throttled t : throttled) {
+            MethodRegistry.MethodInfo method = MethodRegistry.get(t.methodId);
+            message.append("\n  ").append(method.className.replace('/', '.')).append('.')
+                    .append(method.methodName).append(method.descriptor).append(" after ")
+                    .append(t.afterMillis / 1000.0).append(" s: ").append(t.reason);
+        }
+        NullnessLogger.report(message.toString());
+        if (logFile == null) {
+            return;
+        }
+        try (Writer writer = new BufferedWriter(new FileWriter(throttledFile(logFile)))) {
+            writer.append("id,class,method,descriptor,after_ms,reason\n");
+            for (Throttled t : throttled) {
+                MethodRegistry.MethodInfo method = MethodRegistry.get(t.methodId);
+                writer.append(Integer.toString(t.methodId)).append(',')
+                        .append(method.className).append(',')
+                        .append(method.methodName).append(',')
+                        .append(method.descriptor).append(',')
+                        .append(Long.toString(t.afterMillis)).append(',')
+                        .append(t.reason).append('\n');
+            }
+        } catch (IOException e) {
+            NullnessLogger.report("Could not write " + throttledFile(logFile) + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package type_stability;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+// A method table shared by every JVM which uses the same ClassCache. Cached classes have their method IDs baked in,
+// so IDs must mean the same thing in every run: they are assigned under a file lock and appended to this file, and
+// each JVM loads the whole file into its MethodRegistry.
+//
+// Layout: a "# epoch <uuid>" line, a header line, then one "id,class,method,descriptor,numFields,numParameters,fields"
+// line per method, in ID order (see MethodRegistry.fieldsCell; tables written before fields existed lack the column).
+// The epoch changes whenever the file is recreated, which invalidates the cached classes.
+//
+// OfflineInstrumenter registers methods from many threads at once, and is the only writer while it runs, so it opens
+// the table exclusively instead: the file stays locked until close(), IDs are assigned in memory, and the new methods
+// are appended in one write at the end.
+class PersistentMethodTable implements Closeable {
+    private final FileChannel channel;
+    private long readOffset = 0;
+    final String epoch;
+    // Only when opened exclusively: the lock held until close(), and the lines of the methods registered since
+    private final FileLock exclusiveLock;
+    private final StringBuilder pending = new StringBuilder();
+
+    PersistentMethodTable(Path file) throws IOException {
+        this(file, false);
+    }
+
+    PersistentMethodTable(Path file, boolean exclusive) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock = channel.lock();
+        try {
+            if (channel.size() == 0) {
+                append("# epoch " + UUID.randomUUID() + "\nid,class,method,descriptor,numFields,numParameters,fields\n");
+            }
+            String firstLine = readLines().split("\n", 2)[0];
+            epoch = firstLine.substring("# epoch ".length());
+            readOffset = 0; // the methods are loaded by load()
+        } finally {
+            if (!exclusive) {
+                lock.release();
+            }
+        }
+        exclusiveLock = exclusive ? lock : null;
+    }
+
+    // Everything after readOffset which is a complete line
+    private String readLines() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() - readOffset));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, readOffset + buffer.position()) < 0) {
+                break;
+            }
+        }
+        String text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        text = text.substring(0, text.lastIndexOf('\n') + 1);
+        readOffset += text.getBytes(StandardCharsets.UTF_8).length;
+        return text;
+    }
+
+    private void append(String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // Load the methods other JVMs (or earlier runs) have added since we last looked. Must hold the registry lock.
+    private void sync() throws IOException {
+        for (String line : readLines().split("\n")) {
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("id,")) {
+                continue;
+            }
+            String[] cells = line.split(",", -1);
+            int numFields = Integer.parseInt(cells[4]);
+            String[] fieldNames = null;
+            if (numFields == 0) {
+                fieldNames = new String[0];
+            } else if (cells.length > 6 && !cells[6].isEmpty()) {
+                fieldNames = cells[6].split(";");
+            }
+            MethodRegistry.add(new MethodRegistry.MethodInfo(Integer.parseInt(cells[0]), cells[1], cells[2],
+                    cells[3], numFields, Integer.parseInt(cells[5]), fieldNames));
+        }
+    }
+
+    void load() throws IOException {
+        if (exclusiveLock != null) {
+            sync();
+            return;
+        }
+        FileLock lock = channel.lock();
+        try {
+            sync();
+        } finally {
+            lock.release();
+        }
+    }
+
+    private static String line(MethodRegistry.MethodInfo info) {
+        return info.id + "," + info.className + "," + info.methodName + "," + info.descriptor + "," + info.numFields +
+                "," + info.numParameters + "," + MethodRegistry.fieldsCell(info) + "\n";
+    }
+
+    // Must hold the registry lock
+    int register(String className, String methodName, String descriptor, int numFields, int numParameters,
+                 String[] fieldNames) throws IOException {
+        if (exclusiveLock != null) {
+            // No one else can have added methods since load()
+            MethodRegistry.MethodInfo info = new MethodRegistry.MethodInfo(MethodRegistry.size(), className,
+                    methodName, descriptor, numFields, numParameters, fieldNames);
+            pending.append(line(info));
+            MethodRegistry.add(info);
+            return info.id;
+        }
+        FileLock lock = channel.lock();
+        try {
+            sync();
+            int id = MethodRegistry.find(className, methodName, descriptor, numFields, numParameters, fieldNames);
+            if (id >= 0) {
+                return id; // another JVM got there first
+            }
+            id = MethodRegistry.size();
+            MethodRegistry.MethodInfo info = new MethodRegistry.MethodInfo(id, className, methodName, descriptor,
+                    numFields, numParameters, fieldNames);
+            append(line(info));
+            readOffset = channel.size();
+            MethodRegistry.add(info);
+            return id;
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Appends the methods registered since an exclusive open, and releases the file
+    @Override
+    public void close() throws IOException {
+        try {
+            if (exclusiveLock != null) {
+                synchronized (MethodRegistry.class) {
+                    append(pending.toString());
+                    pending.setLength(0);
+                }
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package type_stability;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+// The mergeable profile format, which the aggregate logger writes with --mergeable and ProfileMerger reads and writes.
+// Unlike the CSV profiles, a file is self-describing: every row names its method, so profiles from different JVMs (whose
+// method IDs differ) can be summed, and a header says what wrote it. Layout:
+//   # type-stability profile 1
+//   # created 2026-01-01T00:00:00Z
+//   # jvm OpenJDK 64-Bit Server VM 17.0.2+8
+//   # agent -p com/example --aggregate --mergeable -l out.profile
+//   # shards 1
+//   [caller,]class,method,descriptor,fieldnames,fields,params,result,count[,estimate]
+//   rows, sorted by their key (every column before count) as Java strings compare, with no key twice
+// fieldnames is the method's fields column in the method table (see MethodRegistry.fieldsCell). caller, with
+// --call-sites, is class::method+descriptor@instruction of the call site (see CallSites), or - if unknown. Metadata
+// lines are "# key value"; readers ignore keys they don't know. A merged profile's shards is the number of profiles
+// summed into it, and its jvm and agent are "mixed" if theirs differed.
+class ProfileFormat {
+    static final int VERSION = 1;
+    static final String MAGIC = "# type-stability profile ";
+    static final String MIXED = "mixed";
+    static final String UNKNOWN_CALLER = "-";
+
+    private static final String COLUMNS = "class,method,descriptor,fieldnames,fields,params,result,count";
+
+    static class Header {
+        int version = VERSION;
+        String created;
+        String jvm;
+        String agent;
+        long shards = 1;
+        boolean callers; // with a leading caller column
+        boolean estimates; // with a trailing estimate column, for sampled profiles
+
+        // The header of a profile written by this JVM now
+        static Header current(String agentArgs, boolean callers, boolean estimates) {
+            Header header = new Header();
+            header.created = Instant.now().toString();
+            header.jvm = System.getProperty("java.vm.name") + " " + System.getProperty("java.runtime.version");
+            header.agent = agentArgs;
+            header.callers = callers;
+            header.estimates = estimates;
+            return header;
+        }
+
+        String columns() {
+            return (callers ? "caller," : "") + COLUMNS + (estimates ? ",estimate" : "");
+        }
+
+        int numCounts() {
+            return estimates ? 2 : 1;
+        }
+
+        // Whether rows of profiles with these headers can be summed
+        boolean isCompatible(Header other) {
+            return callers == other.callers && estimates == other.estimates;
+        }
+
+        // The header of the sum of profiles with this header and other's, created now
+        Header merge(Header other) {
+            Header merged = new Header();
+            merged.created = Instant.now().toString();
+            merged.jvm = jvm.equals(other.jvm) ? jvm : MIXED;
+            merged.agent = agent.equals(other.agent) ? agent : MIXED;
+            merged.shards = shards + other.shards;
+            merged.callers = callers;
+            merged.estimates = estimates;
+            return merged;
+        }
+
+        void write(Writer writer) throws IOException {
+            writer.append(MAGIC).append(Integer.toString(version)).append('\n');
+            writer.append("# created ").append(created).append('\n');
+            writer.append("# jvm ").append(jvm).append('\n');
+            writer.append("# agent ").append(agent).append('\n');
+            writer.append("# shards ").append(Long.toString(shards)).append('\n');
+            writer.append(columns()).append('\n');
+        }
+
+        // Reads the header lines of a profile, up to and including its column line
+        static Header read(BufferedReader reader, String name) throws IOException {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(MAGIC)) {
+                throw new IOException(name + " isn't a mergeable profile.");
+            }
+            Header header = new Header();
+            header.version = Integer.parseInt(line.substring(MAGIC.length()).trim());
+            if (header.version > VERSION) {
+                throw new IOException(name + " has version " + header.version + " of the profile format, but only " +
+                        "versions up to " + VERSION + " can be read.");
+            }
+            header.created = "";
+            header.jvm = "";
+            header.agent = "";
+            while ((line = reader.readLine()) != null && line.startsWith("# ")) {
+                int space = line.indexOf(' ', 2);
+                String key = space < 0 ? line.substring(2) : line.substring(2, space);
+                String value = space < 0 ? "" : line.substring(space + 1);
+                switch (key) {
+                    case "created":
+                        header.created = value;
+                        break;
+                    case "jvm":
+                        header.jvm = value;
+                        break;
+                    case "agent":
+                        header.agent = value;
+                        break;
+                    case "shards":
+                        header.shards = Long.parseLong(value);
+                        break;
+                    default:
+                        break; // written by a newer agent
+                }
+            }
+            if (line == null) {
+                throw new IOException(name + " has no column line.");
+            }
+            header.callers = line.startsWith("caller,");
+            header.estimates = line.endsWith(",estimate");
+            if (!line.equals(header.columns())) {
+                throw new IOException(name + " has unexpected columns: " + line);
+            }
+            return header;
+        }
+    }
+
+    static void writeRow(Writer writer, String key, long[] counts) throws IOException {
+        writer.append(key);
+        for (long count : counts) {
+            writer.append(',').append(Long.toString(count));
+        }
+        writer.append('\n');
+    }
+
+    // Reads a profile's rows one at a time, checking that they're sorted
+    static class Reader implements Closeable {
+        final Header header;
+        private final String name;
+        private final BufferedReader reader;
+        private String key = null;
+        private long[] counts;
+
+        Reader(Path path) throws IOException {
+            name = path.toString();
+            reader = Files.newBufferedReader(path);
+            try {
+                header = Header.read(reader, name);
+            } catch (IOException | RuntimeException e) {
+                reader.close();
+                throw e;
+            }
+            counts = new long[header.numCounts()];
+        }
+
+        // Moves to the next row; returns false at the end of the profile
+        boolean next() throws IOException {
+            String line = reader.readLine();
+            if (line == null || line.isEmpty()) {
+                return false;
+            }
+            int end = line.length();
+            for (int i = counts.length - 1; i >= 0; i--) {
+                int comma = line.lastIndexOf(',', end - 1);
+                if (comma < 0) {
+                    throw new IOException("Malformed row in " + name + ": " + line);
+                }
+                counts[i] = Long.parseLong(line.substring(comma + 1, end));
+                end = comma;
+            }
+            String previous = key;
+            key = line.substring(0, end);
+            if (previous != null && key.compareTo(previous) <= 0) {
+                throw new IOException(name + " isn't sorted: " + key + " follows " + previous + ".");
+            }
+            return true;
+        }
+
+        // The key and counts of the current row; counts is overwritten by next()
+        String key() {
+            return key;
+        }
+
+        long[] counts() {
+            return counts;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
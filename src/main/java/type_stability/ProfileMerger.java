@@ -0,0 +1,207 @@
+package type_stability;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Sums any number of mergeable profiles (see ProfileFormat), e.g. from many nodes or benchmark iterations, into one.
+// Profiles are sorted, so merging is a streaming k-way merge which holds one row per input in memory. At most fanIn
+// profiles are merged at a time: more are split into groups of fanIn, which are merged into temporary files in
+// parallel on a fork-join pool, and those are merged in turn. Memory thus stays bounded by the pool's parallelism
+// times fanIn rows, however many profiles there are.
+//
+// Directories stand for the regular files in them.
+// Usage: java -cp TypeStabilityAgent.jar type_stability.ProfileMerger [--fan-in n] outputFile profile|directory...
+public class ProfileMerger {
+    static final int DEFAULT_FAN_IN = 64;
+
+    private final int fanIn;
+    private final Path tempDirectory;
+
+    ProfileMerger(int fanIn, Path tempDirectory) {
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("--fan-in must be at least 2.");
+        }
+        this.fanIn = fanIn;
+        this.tempDirectory = tempDirectory;
+    }
+
+    // Merges profiles into output, or into a new temporary file if output is null; returns the file it wrote
+    @SuppressWarnings("serial") // never serialized, and needs its ProfileMerger anyway
+    private class MergeTask extends RecursiveTask<Path> {
+        private final List<Path> profiles;
+        private final Path output;
+
+        MergeTask(List<Path> profiles, Path output) {
+            this.profiles = profiles;
+            this.output = output;
+        }
+
+        @Override
+        protected Path compute() {
+            try {
+                if (profiles.size() <= fanIn) {
+                    Path result = output != null ? output : Files.createTempFile(tempDirectory, "merge", ".profile");
+                    merge(profiles, result);
+                    return result;
+                }
+                List<MergeTask> groups = new ArrayList<>();
+                int groupSize = (profiles.size() + fanIn - 1) / fanIn;
+                for (int start = 0; start < profiles.size(); start += groupSize) {
+                    groups.add(new MergeTask(profiles.subList(start, Math.min(profiles.size(), start + groupSize)),
+                            null));
+                }
+                try {
+                    invokeAll(groups);
+                    List<Path> merged = groups.stream().map(MergeTask::join).collect(Collectors.toList());
+                    return new MergeTask(merged, output).compute();
+                } finally {
+                    for (MergeTask group : groups) {
+                        if (group.isCompletedNormally()) {
+                            Files.deleteIfExists(group.getRawResult());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // The sum of profiles, checking that they can be summed
+    static ProfileFormat.Header mergeHeaders(List<Path> profiles) throws IOException {
+        ProfileFormat.Header merged = null;
+        for (Path path : profiles) {
+            ProfileFormat.Header header;
+            try (BufferedReader reader = Files.newBufferedReader(path)) {
+                header = ProfileFormat.Header.read(reader, path.toString());
+            }
+            if (merged == null) {
+                merged = header;
+            } else if (!merged.isCompatible(header)) {
+                throw new IOException(path + " has columns " + header.columns() + ", unlike the profiles before it (" +
+                        merged.columns() + ").");
+            } else {
+                merged = merged.merge(header);
+            }
+        }
+        return merged;
+    }
+
+    // The k-way merge: repeatedly take the smallest key among the inputs' current rows, and sum its counts
+    private static void merge(List<Path> profiles, Path output) throws IOException {
+        List<ProfileFormat.Reader> readers = new ArrayList<>();
+        try {
+            ProfileFormat.Header header = null;
+            for (Path path : profiles) {
+                ProfileFormat.Reader reader = new ProfileFormat.Reader(path);
+                readers.add(reader);
+                if (header == null) {
+                    header = reader.header;
+                } else if (!header.isCompatible(reader.header)) {
+                    throw new IOException(path + " can't be merged with " + profiles.get(0) + ".");
+                } else {
+                    header = header.merge(reader.header);
+                }
+            }
+            PriorityQueue<ProfileFormat.Reader> queue = new PriorityQueue<>(
+                    Comparator.comparing(ProfileFormat.Reader::key));
+            for (ProfileFormat.Reader reader : readers) {
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            boolean written = false;
+            try (Writer writer = Files.newBufferedWriter(output)) {
+                header.write(writer);
+                long[] sum = new long[header.numCounts()];
+                while (!queue.isEmpty()) {
+                    String key = queue.peek().key();
+                    Arrays.fill(sum, 0);
+                    while (!queue.isEmpty() && queue.peek().key().equals(key)) {
+                        ProfileFormat.Reader reader = queue.poll();
+                        long[] counts = reader.counts();
+                        for (int i = 0; i < sum.length; i++) {
+                            sum[i] += counts[i];
+                        }
+                        if (reader.next()) {
+                            queue.add(reader);
+                        }
+                    }
+                    ProfileFormat.writeRow(writer, key, sum);
+                }
+                written = true;
+            } finally {
+                if (!written) {
+                    Files.deleteIfExists(output);
+                }
+            }
+        } finally {
+            for (ProfileFormat.Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    void mergeAll(List<Path> profiles, Path output) throws IOException {
+        try {
+            ForkJoinPool.commonPool().invoke(new MergeTask(profiles, output));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int fanIn = DEFAULT_FAN_IN;
+        int i = 0;
+        if (args.length > 1 && args[0].equals("--fan-in")) {
+            fanIn = Integer.parseInt(args[1]);
+            i = 2;
+        }
+        if (args.length - i < 2) {
+            System.err.println("Usage: ProfileMerger [--fan-in n] outputFile profile|directory...");
+            System.exit(1);
+        }
+        Path output = Paths.get(args[i++]);
+        List<Path> profiles = new ArrayList<>();
+        for (; i < args.length; i++) {
+            Path path = Paths.get(args[i]);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    files.filter(Files::isRegularFile).sorted().forEach(profiles::add);
+                }
+            } else {
+                profiles.add(path);
+            }
+        }
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("No profiles to merge.");
+        }
+        for (Path path : profiles) {
+            if (Files.exists(output) && Files.isSameFile(path, output)) {
+                throw new IllegalArgumentException("Refusing to overwrite " + path + ", which is being merged.");
+            }
+        }
+        long start = System.nanoTime();
+        // Fail before any merging if the profiles can't be summed
+        ProfileFormat.Header header = mergeHeaders(profiles);
+        Path parent = output.toAbsolutePath().getParent();
+        new ProfileMerger(fanIn, parent).mergeAll(profiles, output);
+        System.err.println("Merged " + profiles.size() + " profiles (" + header.shards + " shards) into " + output +
+                " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+    }
+}
@@ -0,0 +1,63 @@
+package type_stability;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Bounds how long the agent profiles (--duration and --max-events; always bounded when attached to a running JVM).
+// When the window closes, the transformer is removed and the instrumented classes are retransformed back to their
+// original bytes, so the program runs on without any overhead, and the logger writes its results right away.
+class ProfilingWindow {
+    private static final Logger LOGGER = Logger.getLogger(ProfilingWindow.class.getName());
+
+    // The event budget is only checked this often, so a busy program may overshoot it
+    private static final long POLL_MILLIS = 100;
+
+    static void open(Config conf, Instrumentation inst, TypeStabilityTransformer transformer) {
+        long deadline = conf.durationSeconds > 0
+                ? System.nanoTime() + TimeUnit.SECONDS.toNanos(conf.durationSeconds)
+                : Long.MAX_VALUE;
+        Thread t = new Thread(() -> {
+            try {
+                while (System.nanoTime() < deadline && (conf.maxEvents == 0 || LiveStats.eventCount() < conf.maxEvents)) {
+                    Thread.sleep(POLL_MILLIS);
+                }
+                close(conf, inst, transformer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "type-stability-window");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void close(Config conf, Instrumentation inst, TypeStabilityTransformer transformer)
+            throws InterruptedException {
+        // Without the transformer, retransforming a class restores the bytes it was loaded with
+        inst.removeTransformer(transformer);
+        int n = retransformLoadedClasses(inst, conf.classFilter);
+        NullnessLogger.detach();
+        NullnessLogger.report("Profiling window closed" +
+                (LiveStats.isEnabled() ? " after " + LiveStats.eventCount() + " events" : "") +
+                "; restored " + n + " classes.");
+    }
+
+    // Retransform the loaded classes which filter matches; returns how many were retransformed
+    static int retransformLoadedClasses(Instrumentation inst, ClassFilter filter) {
+        int n = 0;
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            if (!filter.matches(c.getName().replace('.', '/')) || !inst.isModifiableClass(c)) {
+                continue;
+            }
+            try {
+                inst.retransformClasses(c);
+                n++;
+            } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+                LOGGER.log(Level.WARNING, "Could not retransform " + c.getName() + ":", e);
+            }
+        }
+        return n;
+    }
+}
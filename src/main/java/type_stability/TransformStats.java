@@ -0,0 +1,76 @@
+package type_stability;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps track of how long the agent spends transforming classes, in total and (with --timings) per class.
+class TransformStats {
+    static class ClassTiming {
+        final String className;
+        final long parseNanos;
+        final long transformNanos;
+        final long writeNanos;
+        final long validateNanos;
+
+        ClassTiming(String className, long parseNanos, long transformNanos, long writeNanos, long validateNanos) {
+            this.className = className;
+            this.parseNanos = parseNanos;
+            this.transformNanos = transformNanos;
+            this.writeNanos = writeNanos;
+            this.validateNanos = validateNanos;
+        }
+
+        long totalNanos() {
+            return parseNanos + transformNanos + writeNanos + validateNanos;
+        }
+    }
+
+    static final AtomicLong numClasses = new AtomicLong();
+    static final AtomicLong totalNanos = new AtomicLong();
+    static final AtomicLong cacheHits = new AtomicLong();
+    // Methods instrumented in the classes counted by numClasses
+    static final AtomicLong numMethods = new AtomicLong();
+
+    private static String timingsFile = null;
+    private static final ConcurrentLinkedQueue<ClassTiming> timings = new ConcurrentLinkedQueue<>();
+
+    // Write per-class timings to file at shutdown
+    static void configure(String file) {
+        if (file == null) {
+            return;
+        }
+        timingsFile = file;
+        Runtime.getRuntime().addShutdownHook(new Thread(TransformStats::writeTimings));
+    }
+
+    static void record(ClassTiming timing) {
+        numClasses.incrementAndGet();
+        totalNanos.addAndGet(timing.totalNanos());
+        if (timingsFile != null) {
+            timings.add(timing);
+        }
+    }
+
+    private static void writeTimings() {
+        try (Writer writer = new BufferedWriter(new FileWriter(timingsFile))) {
+            writer.append("class,parse_ns,transform_ns,write_ns,validate_ns\n");
+            for (ClassTiming t : timings) {
+                writer.append(t.className).append(',')
+                        .append(Long.toString(t.parseNanos)).append(',')
+                        .append(Long.toString(t.transformNanos)).append(',')
+                        .append(Long.toString(t.writeNanos)).append(',')
+                        .append(Long.toString(t.validateNanos)).append('\n');
+            }
+        } catch (IOException e) {
+            NullnessLogger.report("Could not write transform timings to " + timingsFile + ": " + e.getMessage());
+        }
+        NullnessLogger.report("Transformed " + numClasses.get() + " classes in " +
+                TimeUnit.NANOSECONDS.toMillis(totalNanos.get()) + " ms, and took " + cacheHits.get() +
+                " from the cache.");
+    }
+}
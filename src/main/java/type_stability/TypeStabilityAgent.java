@@ -1,155 +1,85 @@
 package type_stability;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.util.CheckClassAdapter;
-
-import java.io.IOException;
-import java.lang.instrument.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.lang.instrument.Instrumentation;
 import java.nio.file.Paths;
-import java.security.ProtectionDomain;
-import java.util.logging.Handler;
-import java.util.logging.Level;
-import java.util.logging.LogManager;
-import java.util.logging.Logger;
 
 
 public class TypeStabilityAgent {
+    // How long an attached agent profiles when given neither --duration nor --max-events
+    private static final int DEFAULT_ATTACH_SECONDS = 60;
+
     public static void premain(String agentArgs, Instrumentation inst) throws Exception {
         Config conf = Config.parse(agentArgs);
-        // Initialize whichever kind of logger it is.
-        NullnessLogger.initialize(conf.loggerClass, conf.logFile);
-        inst.addTransformer(new TypeStabilityTransformer(conf));
-    }
-}
-
-class Config {
-    String prefix;
-    String logFile;
-    String dumpDirectory;
-    Class<? extends NullnessLogger> loggerClass;
-
-    static void setLogLevel(Level level) {
-        Logger rootLogger = LogManager.getLogManager().getLogger("");
-        rootLogger.setLevel(level);
-        for (Handler h : rootLogger.getHandlers()) {
-            h.setLevel(level);
+        if (conf.methodTable != null) {
+            // The classes were instrumented by OfflineInstrumenter; only the logger runtime is needed
+            configure(conf, inst);
+            MethodRegistry.persist(new PersistentMethodTable(Paths.get(conf.methodTable)));
+            return;
+        }
+        if (conf.specializeProfile != null) {
+            // Nothing is profiled, so no logger; see MethodSpecializer
+            TransformStats.configure(conf.timingsFile);
+            conf.profile = NullnessProfile.load(conf.specializeProfile);
+            MethodSpecializer.reportAtShutdown();
+            inst.addTransformer(new TypeStabilityTransformer(conf), false);
+            return;
+        }
+        boolean windowed = conf.durationSeconds > 0 || conf.maxEvents > 0;
+        TypeStabilityTransformer transformer = start(conf, inst, windowed);
+        if (windowed) {
+            ProfilingWindow.open(conf, inst, transformer);
         }
     }
 
-    static Config parse(String args) {
-        Config result = new Config();
-        result.loggerClass = NullnessLogger.class;
-        setLogLevel(Level.WARNING);
-
-        if (args == null || args.isEmpty()) {
-            throw new IllegalArgumentException("Agent arguments cannot be empty. Usage: -p packagePrefix [-l logFile] [-d dumpDirectory] [--aggregate]");
+    // Loaded into a running JVM, e.g. with AttachMain or `jcmd <pid> JVMTI.agent_load <agent jar> "<args>"`. Instruments
+    // the matching classes the JVM has already loaded for a bounded window; see ProfilingWindow.
+    public static void agentmain(String agentArgs, Instrumentation inst) throws Exception {
+        if (NullnessLogger.instance != null) {
+            throw new IllegalStateException("The type stability agent has already been loaded into this JVM.");
         }
-
-        String[] tokens = args.split(" ");
-        for (int i = 0; i < tokens.length; i += 1) {
-            switch(tokens[i]) {
-                case "-p":
-                    result.prefix = tokens[++i];
-                    break;
-                case "-l":
-                    result.logFile = tokens[++i];
-                    break;
-                case "-d":
-                    result.dumpDirectory = tokens[++i];
-                    break;
-                case "-v":
-                    setLogLevel(Level.INFO);
-                    break;
-                case "--aggregate":
-                    result.loggerClass = NullnessAggregateLogger.class;
-                    break;
-                default:
-                    throw new IllegalArgumentException("Invalid agent argument: " + tokens[i]);
-            }
+        if (!inst.isRetransformClassesSupported()) {
+            throw new IllegalStateException("This JVM can't retransform classes, so the agent can't be attached.");
         }
-        if (result.prefix == null) {
-            throw new IllegalArgumentException("Package prefix required in agent arguments.");
+        Config conf = Config.parse(agentArgs);
+        if (conf.methodTable != null) {
+            throw new IllegalArgumentException("--methods can't be used when attaching.");
         }
-        return result;
-    }
-}
-
-class TypeStabilityTransformer implements ClassFileTransformer {
-    private final static Logger LOGGER = Logger.getLogger(TypeStabilityTransformer.class.getName());
-
-    String prefix;
-    Class<? extends NullnessLogger> loggerClass;
-    String dumpDirectory;
-
-    TypeStabilityTransformer(Config conf) {
-        this.prefix = conf.prefix;
-        this.loggerClass = conf.loggerClass;
-        this.dumpDirectory = conf.dumpDirectory;
-    }
-
-    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
-                            ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
-        if (!className.startsWith(this.prefix)) {
-            return null;
+        if (conf.specializeProfile != null) {
+            // Retransforming can't add the specialized methods
+            throw new IllegalArgumentException("--specialize can't be used when attaching.");
         }
-        LOGGER.info("Found transform candidate " + className + ".");
-
-        // Read the byte representation into a ClassNode
-        ClassReader cr = new ClassReader(classfileBuffer);
-        ClassNode cn = new ClassNode();
-        cr.accept(cn, ClassReader.EXPAND_FRAMES);
-
-        // TODO: It looks like COMPUTE_FRAMES is necessary for Java 1.7 and onward, because the JVM expects stack frame
-        //  maps. However, somewhere in the call stack this causes asm to load classes, which it sometimes fails to do.
-        //  Apparently you can override ClassWriter.getCommonSuperClass for this scenario but it's unclear what is
-        //  causing only certain classes to fail (i.e., it's not just classes that are currently being loaded that fail).
-        //  link: https://gitlab.ow2.org/asm/asm/-/issues/317918
-        ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES);
-
-        // Transform the methods of this class
-        byte[] result;
-        MethodStabilityTransformer<? extends NullnessLogger> m = new MethodStabilityTransformer<>(loggerClass);
-        try {
-            cn = m.transformClass(cn);
-
-            // Write the ClassNode back to bytes. We run the checker *after* this step, because the ClassWriter fixes up
-            // stack size and frames, which is necessary for dataflow checks.
-            cn.accept(cw);
-            result = cw.toByteArray();
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Exception occurred while transforming " + cn.name + ":", e);
-            throw e;
+        if (conf.durationSeconds == 0 && conf.maxEvents == 0) {
+            conf.durationSeconds = DEFAULT_ATTACH_SECONDS;
         }
+        TypeStabilityTransformer transformer = start(conf, inst, true);
+        ProfilingWindow.retransformLoadedClasses(inst, conf.classFilter);
+        ProfilingWindow.open(conf, inst, transformer);
+    }
 
-        if (dumpDirectory != null) {
-            Path path = Paths.get(dumpDirectory, className + ".class");
-            LOGGER.info("Dumping results to " + path.toString() + ".");
-            try {
-                Files.createDirectories(path.getParent());
-                Files.write(path, result);
-            } catch (IOException e) {
-                LOGGER.severe("Exception while dumping " + className + " to file.");
-            }
-        }
+    private static TypeStabilityTransformer start(Config conf, Instrumentation inst, boolean windowed)
+            throws Exception {
+        configure(conf, inst);
+        // Converged methods are removed by retransforming their class, which needs a retransformation-capable
+        // transformer. The JVM then passes it the original class bytes again, so it can simply leave them out. Closing
+        // a profiling window likewise retransforms classes, after removing the transformer.
+        TypeStabilityTransformer transformer = new TypeStabilityTransformer(conf);
+        inst.addTransformer(transformer, windowed || ConvergenceTracker.isEnabled());
+        return transformer;
+    }
 
-        LOGGER.info("Validating " + className + ".");
-        try {
-            CheckClassAdapter checker = new CheckClassAdapter(null);
-            cr = new ClassReader(result);
-            cn = new ClassNode();
-            cr.accept(cn, 0);
-            cn.accept(checker);
-        } catch (Exception e) {
-            LOGGER.severe("Invalid bytecode generated for " + className + ":");
-            LOGGER.severe(e.getMessage());
-            throw e;
+    private static void configure(Config conf, Instrumentation inst) throws Exception {
+        NullnessSampler.configure(conf.sampleEvery, conf.sampleRandom, conf.adaptiveThreshold);
+        NullnessSketchLogger.configure(conf.topK, conf.sketchWidth);
+        CallSites.configure(conf.callSites);
+        // Initialize whichever kind of logger it is.
+        NullnessLogger.initialize(conf);
+        ConvergenceTracker.configure(conf.convergeThreshold, inst);
+        TransformStats.configure(conf.timingsFile);
+        LiveStats.configure(conf.jmx, conf.statsFile, conf.statsInterval);
+        OverheadGovernor.configure(conf.overheadBudget, conf.logFile);
+        if (conf.maxEvents > 0) {
+            // The window counts events through LiveStats
+            LiveStats.enable();
         }
-        LOGGER.info("Successfully transformed " + className + ".");
-
-        return result;
     }
 }
@@ -0,0 +1,75 @@
+package type_stability;
+
+import java.util.List;
+
+// What the agent exposes over JMX as type_stability:type=TypeStability (see LiveStats). Counts are cumulative since
+// the agent started.
+public interface TypeStabilityMXBean {
+    // Events recorded by probes, including any the async logger later dropped
+    long getEventCount();
+
+    // Events per second since the previous call, or since the agent started
+    double getEventsPerSecond();
+
+    // Calls of instrumented methods which the sampler skipped; estimated from the events' weights
+    long getSampledOutCount();
+
+    // Events the async logger dropped because a ring buffer was full
+    long getDroppedEventCount();
+
+    // Classes the transformer instrumented, and classes it took from the class cache instead
+    long getTransformedClassCount();
+
+    long getCachedClassCount();
+
+    // Methods instrumented by the transformer (not counting cached classes)
+    long getInstrumentedMethodCount();
+
+    long getTransformMillis();
+
+    // Outcome counts of every method which has recorded an event
+    List<MethodOutcomes> getMethodOutcomes();
+
+    class MethodOutcomes {
+        private final String className;
+        private final String methodName;
+        private final String descriptor;
+        private final long nullReturns;
+        private final long nonNullReturns;
+        private final long throwsCount;
+
+        MethodOutcomes(String className, String methodName, String descriptor,
+                       long nullReturns, long nonNullReturns, long throwsCount) {
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.nullReturns = nullReturns;
+            this.nonNullReturns = nonNullReturns;
+            this.throwsCount = throwsCount;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public String getDescriptor() {
+            return descriptor;
+        }
+
+        public long getNullReturns() {
+            return nullReturns;
+        }
+
+        public long getNonNullReturns() {
+            return nonNullReturns;
+        }
+
+        public long getThrows() {
+            return throwsCount;
+        }
+    }
+}
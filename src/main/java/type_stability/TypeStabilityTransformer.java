@@ -0,0 +1,160 @@
+package type_stability;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+class TypeStabilityTransformer implements ClassFileTransformer {
+    private final static Logger LOGGER = Logger.getLogger(TypeStabilityTransformer.class.getName());
+
+    ClassFilter classFilter;
+    Class<? extends NullnessLogger> loggerClass;
+    boolean sampled;
+    FieldSelection fieldSelection;
+    MethodFilter methodFilter;
+    boolean validate;
+    String dumpDirectory;
+    ClassCache cache;
+    NullnessProfile profile; // when specializing instead of instrumenting
+
+    TypeStabilityTransformer(Config conf) throws IOException {
+        this.classFilter = conf.classFilter;
+        this.loggerClass = conf.loggerClass;
+        this.sampled = conf.isSampled();
+        this.fieldSelection = conf.fieldSelection();
+        this.methodFilter = conf.methodFilter;
+        this.validate = conf.validate;
+        this.dumpDirectory = conf.dumpDirectory;
+        this.profile = conf.profile;
+        this.cache = conf.cacheDirectory != null
+                ? ClassCache.open(conf.cacheDirectory, conf.transformFingerprint())
+                : null;
+    }
+
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        long start = System.nanoTime();
+        if (!classFilter.matches(className)) {
+            return null;
+        }
+        LOGGER.info("Found transform candidate " + className + ".");
+        // Other candidates' frames may need this class's superclass before the JVM has defined it
+        HierarchyClassWriter.index(classfileBuffer);
+
+        // Retransformations (e.g. of converged methods) differ from what's cached, so they always go through ASM
+        String cacheKey = null;
+        if (cache != null && classBeingRedefined == null) {
+            cacheKey = cache.key(classfileBuffer);
+            byte[] cached = cache.lookup(cacheKey);
+            if (cached != null) {
+                LOGGER.info("Using cached transformation of " + className + ".");
+                TransformStats.cacheHits.incrementAndGet();
+                return cached.length == 0 ? null : cached;
+            }
+        }
+
+        // Read the byte representation into a ClassNode
+        ClassReader cr = new ClassReader(classfileBuffer);
+        ClassNode cn = new ClassNode();
+        cr.accept(cn, ClassReader.EXPAND_FRAMES);
+        long parsed = System.nanoTime();
+
+        // COMPUTE_FRAMES is necessary for Java 1.7 and onward, because the JVM expects stack frame maps. The default
+        // ClassWriter loads classes to compute them, which can fail in the middle of class loading; see
+        // HierarchyClassWriter.
+        ClassWriter cw = new HierarchyClassWriter(cr, ClassWriter.COMPUTE_FRAMES, loader);
+
+        // Transform the methods of this class
+        byte[] result;
+        long transformed;
+        int numTransformed;
+        try {
+            boolean callSites = false;
+            if (profile != null) {
+                MethodSpecializer s = new MethodSpecializer(profile, methodFilter);
+                cn = s.transformClass(cn);
+                numTransformed = s.getNumTransformed();
+            } else {
+                MethodStabilityTransformer<? extends NullnessLogger> m = new MethodStabilityTransformer<>(loggerClass,
+                        sampled, fieldSelection, methodFilter);
+                cn = m.transformClass(cn);
+                numTransformed = m.getNumTransformed();
+                callSites = m.getNumCallSites() > 0;
+            }
+            transformed = System.nanoTime();
+            if (numTransformed == 0 && !callSites) {
+                // Nothing to instrument (e.g. every method has converged); keep the original bytes
+                LOGGER.info("No methods to transform in " + className + ".");
+                storeInCache(cacheKey, null);
+                return null;
+            }
+
+            // Write the ClassNode back to bytes. We run the checker *after* this step, because the ClassWriter fixes up
+            // stack size and frames, which is necessary for dataflow checks.
+            cn.accept(cw);
+            result = cw.toByteArray();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Exception occurred while transforming " + cn.name + ":", e);
+            throw e;
+        }
+        long written = System.nanoTime();
+
+        if (dumpDirectory != null) {
+            Path path = Paths.get(dumpDirectory, className + ".class");
+            LOGGER.info("Dumping results to " + path.toString() + ".");
+            try {
+                Files.createDirectories(path.getParent());
+                Files.write(path, result);
+            } catch (IOException e) {
+                LOGGER.severe("Exception while dumping " + className + " to file.");
+            }
+        }
+
+        long validateStart = System.nanoTime();
+        if (validate) {
+            LOGGER.info("Validating " + className + ".");
+            try {
+                CheckClassAdapter checker = new CheckClassAdapter(null);
+                cr = new ClassReader(result);
+                cn = new ClassNode();
+                cr.accept(cn, 0);
+                cn.accept(checker);
+            } catch (Exception e) {
+                LOGGER.severe("Invalid bytecode generated for " + className + ":");
+                LOGGER.severe(e.getMessage());
+                throw e;
+            }
+        }
+        long validated = System.nanoTime();
+        TransformStats.ClassTiming timing = new TransformStats.ClassTiming(className,
+                parsed - start, transformed - parsed, written - transformed, validated - validateStart);
+        TransformStats.record(timing);
+        TransformStats.numMethods.addAndGet(numTransformed);
+        LOGGER.info("Successfully transformed " + className + " in " + timing.totalNanos() / 1000 + " us.");
+
+        storeInCache(cacheKey, result);
+        return result;
+    }
+
+    private void storeInCache(String cacheKey, byte[] result) {
+        if (cacheKey == null) {
+            return;
+        }
+        try {
+            cache.store(cacheKey, result);
+        } catch (IOException e) {
+            LOGGER.warning("Could not cache transformed class: " + e.getMessage());
+        }
+    }
+}